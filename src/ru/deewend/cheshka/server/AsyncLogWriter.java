@@ -0,0 +1,160 @@
+package ru.deewend.cheshka.server;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Lets the threads producing log entries hand them over to a single writer thread, so neither the console
+ * nor the disk is written to while holding a monitor (which would pin the carrier of a virtual thread).
+ * The entries are passed through a bounded lock-free multi-producer single-consumer ring buffer. Once
+ * it's full, entries with a level up to DROP_LEVEL are dropped, the remaining ones wait for free space.
+ */
+public class AsyncLogWriter implements Runnable {
+    public static final int CAPACITY = Integer.parseInt(Helper.getProperty("logBufferCapacity", "8192"));
+    /*
+     * "none" (always wait for free space), "info" or "warn". Severe entries are never dropped.
+     */
+    public static final String DROP_LEVEL = Helper.getProperty("logDropLevel", "info");
+
+    private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100L);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    private record Entry(long time, byte logLevel, String prefix, String message, Throwable t) {
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<Entry> entries;
+    /*
+     * sequences[i] == n means the slot can be taken by the producer of the n-th entry,
+     * sequences[i] == n + 1 means the n-th entry has been published.
+     */
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final byte dropLevel;
+    private Thread writerThread; // assigned by start()
+    private long head; // accessed only by the writer thread
+    private volatile long written; // the number of entries already flushed
+    private volatile boolean sleeping;
+
+    public AsyncLogWriter() {
+        int capacity = Integer.highestOneBit(Math.max(CAPACITY, 2) - 1) << 1;
+        mask = capacity - 1;
+        entries = new AtomicReferenceArray<>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) sequences.setPlain(i, i);
+
+        dropLevel = switch (DROP_LEVEL) {
+            case "none" -> -1;
+            case "info" -> Log.LOG_LEVEL_INFO;
+            case "warn" -> Log.LOG_LEVEL_WARN;
+            default -> throw new IllegalArgumentException("Unknown logDropLevel: " + DROP_LEVEL +
+                    ", expected none, info or warn");
+        };
+    }
+
+    public AsyncLogWriter start() {
+        writerThread = Thread.ofPlatform().name("Log Writer").daemon().start(this);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "Log Shutdown"));
+
+        return this;
+    }
+
+    /*
+     * Returns the sequence number of the entry, or -1 if it has been dropped.
+     */
+    public long enqueue(byte logLevel, String prefix, String message, Throwable t) {
+        Entry entry = new Entry(System.currentTimeMillis(), logLevel, prefix, message, t);
+        while (true) {
+            long sequence = tail.get();
+            int index = (int) sequence & mask;
+            long available = sequences.getAcquire(index);
+            if (available == sequence) {
+                if (!tail.compareAndSet(sequence, sequence + 1)) continue;
+
+                entries.setPlain(index, entry);
+                sequences.setRelease(index, sequence + 1);
+                if (sleeping) LockSupport.unpark(writerThread);
+
+                return sequence;
+            }
+            if (available < sequence) { // full
+                if (logLevel <= dropLevel) {
+                    dropped.incrementAndGet();
+
+                    return -1L;
+                }
+                LockSupport.unpark(writerThread);
+                LockSupport.parkNanos(WAIT_NANOS); // doesn't pin the carrier of a virtual thread
+            }
+        }
+    }
+
+    /*
+     * Waits until every entry enqueued before the call has been written.
+     */
+    public void flush() {
+        long target = tail.get();
+        while (written < target && writerThread.isAlive()) {
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("InfiniteLoopStatement")
+    public void run() {
+        while (true) {
+            Entry entry = poll();
+            if (entry == null) {
+                sleeping = true;
+                if ((entry = poll()) == null) LockSupport.parkNanos(this, IDLE_NANOS);
+                sleeping = false;
+                if (entry == null) continue;
+            }
+            /*
+             * Writes everything available at once, flushing the streams only in the end.
+             */
+            do {
+                write(entry);
+            } while ((entry = poll()) != null);
+
+            long droppedCount = dropped.getAndSet(0L);
+            if (droppedCount > 0L) {
+                write(new Entry(System.currentTimeMillis(), Log.LOG_LEVEL_WARN, "[WARN] ",
+                        droppedCount + " log entries were dropped because the buffer was full", null));
+            }
+            System.out.flush();
+            System.err.flush();
+            if (Log.FILE_WRITER != null) Log.FILE_WRITER.flush();
+
+            written = head;
+        }
+    }
+
+    private Entry poll() {
+        int index = (int) head & mask;
+        if (sequences.getAcquire(index) != head + 1) return null;
+
+        Entry entry = entries.getPlain(index);
+        entries.setPlain(index, null);
+        sequences.setRelease(index, head + mask + 1);
+        head++;
+
+        return entry;
+    }
+
+    private void write(Entry entry) {
+        PrintStream stream = (entry.logLevel() == Log.LOG_LEVEL_INFO ? System.out : System.err);
+        Log.print(stream, entry.time(), entry.prefix(), entry.message(), entry.t());
+
+        if (Log.FILE_WRITER == null) return;
+
+        PrintStream fileStream = Log.FILE_WRITER.get(entry.time());
+        if (fileStream != null) Log.print(fileStream, entry.time(), entry.prefix(), entry.message(), entry.t());
+    }
+}
@@ -277,16 +277,23 @@ public class Board {
     }
 
     public Packet checkTimeout() {
+        if (System.currentTimeMillis() < getTimeoutDeadline()) return null;
+
+        if (lastDiceRollResult == null) return rollDice();
+
+        return makeRandomMove();
+    }
+
+    /*
+     * The time checkTimeout() is going to act at, unless someone makes an action earlier.
+     */
+    public long getTimeoutDeadline() {
         long timeout = turnWaitingTimeoutMillis;
-        boolean hasRollResult = (lastDiceRollResult != null);
-        if (hasRollResult && lastDiceRollResult.second().isEmpty()) { // is the possible moves list empty?
+        if (lastDiceRollResult != null && lastDiceRollResult.second().isEmpty()) { // no possible moves?
             timeout /= 2L;
         }
-        if (System.currentTimeMillis() - lastActionTimestamp < timeout) return null;
-
-        if (!hasRollResult) return rollDice();
 
-        return makeRandomMove();
+        return lastActionTimestamp + timeout;
     }
 
     private MakeMove makeRandomMove() {
@@ -301,6 +308,9 @@ public class Board {
         return makeMove(possibleMoves.get(randomIdx), true);
     }
 
+    /*
+     * Always returns a new instance (or null), never the given packet, which is recycled right after this call.
+     */
     public MakeMove makeMove(MakeMove packet, boolean white) {
         if (whitesTurn != white) return null;
         if (lastDiceRollResult == null) return null;
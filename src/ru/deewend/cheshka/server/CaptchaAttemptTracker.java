@@ -0,0 +1,119 @@
+package ru.deewend.cheshka.server;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Keeps track of captcha challenges per remote address (or per /64 prefix in case of IPv6) across
+ * connections, so reconnecting doesn't give a client another bunch of attempts. Once the failures
+ * exceed FREE_FAILURES, each subsequent challenge has to wait for an exponentially growing cool-down.
+ * The number of tracked addresses is bounded, the least recently seen ones are forgotten first.
+ */
+public class CaptchaAttemptTracker {
+    public static final int CAPACITY = Integer.parseInt(Helper.getProperty("captchaTrackerCapacity", "8192"));
+    public static final int FREE_FAILURES = Integer.parseInt(Helper.getProperty("captchaFreeFailures", "10"));
+    public static final int MAX_OUTSTANDING_CHALLENGES =
+            Integer.parseInt(Helper.getProperty("captchaMaxOutstandingChallenges", "4"));
+    public static final long COOL_DOWN_BASE_MILLIS =
+            Long.parseLong(Helper.getProperty("captchaCoolDownBaseMillis", "5000"));
+    public static final long COOL_DOWN_MAX_MILLIS = Long.parseLong(
+            Helper.getProperty("captchaCoolDownMaxMillis", String.valueOf(TimeUnit.MINUTES.toMillis(30))));
+    /*
+     * An address which hasn't requested a challenge for that long starts from scratch.
+     */
+    public static final long FORGET_AFTER_MILLIS = Long.parseLong(
+            Helper.getProperty("captchaForgetAfterMillis", String.valueOf(TimeUnit.HOURS.toMillis(6))));
+
+    private static final CaptchaAttemptTracker INSTANCE = new CaptchaAttemptTracker();
+
+    private static class Entry {
+        int failures;
+        int outstanding;
+        long coolDownUntil;
+        long lastSeen;
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private CaptchaAttemptTracker() {
+    }
+
+    public static CaptchaAttemptTracker getInstance() {
+        return INSTANCE;
+    }
+
+    public static String getKey(String hostAddress) {
+        InetAddress address;
+        try {
+            address = InetAddress.getByName(hostAddress); // a literal, so no lookup is performed
+        } catch (UnknownHostException e) {
+            return hostAddress;
+        }
+        if (!(address instanceof Inet6Address)) return address.getHostAddress();
+
+        /*
+         * A single IPv6 subscriber usually gets a whole /64, so the remaining bits are not worth distinguishing.
+         */
+        byte[] bytes = address.getAddress();
+        StringBuilder key = new StringBuilder(20);
+        for (int i = 0; i < 8; i += 2) {
+            key.append(Integer.toHexString(((bytes[i] & 0xFF) << 8) | (bytes[i + 1] & 0xFF))).append(':');
+        }
+
+        return key.append(":/64").toString();
+    }
+
+    /*
+     * Returns 0 if a new challenge may be issued (it's then considered outstanding until one of the
+     * release() or onFailure() is called), otherwise the number of milliseconds the client should wait.
+     */
+    public synchronized long tryAcquire(String key) {
+        long currentTime = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry == null || currentTime - entry.lastSeen >= FORGET_AFTER_MILLIS) {
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+        entry.lastSeen = currentTime;
+
+        if (currentTime < entry.coolDownUntil) return entry.coolDownUntil - currentTime;
+        if (entry.outstanding >= MAX_OUTSTANDING_CHALLENGES) return COOL_DOWN_BASE_MILLIS;
+
+        entry.outstanding++;
+
+        return 0L;
+    }
+
+    /*
+     * The challenge was either solved or has never reached the client.
+     */
+    public synchronized void release(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.outstanding > 0) entry.outstanding--;
+    }
+
+    /*
+     * Should also be called if the client has disconnected without answering the challenge.
+     */
+    public synchronized void onFailure(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) return;
+
+        if (entry.outstanding > 0) entry.outstanding--;
+        int excess = ++entry.failures - FREE_FAILURES;
+        if (excess > 0) {
+            long coolDown = COOL_DOWN_BASE_MILLIS << Math.min(excess - 1, 20);
+
+            entry.coolDownUntil = System.currentTimeMillis() + Math.min(coolDown, COOL_DOWN_MAX_MILLIS);
+        }
+    }
+}
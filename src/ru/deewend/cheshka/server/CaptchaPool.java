@@ -0,0 +1,109 @@
+package ru.deewend.cheshka.server;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Captchas are rendered ahead of time by a fixed number of platform threads and are kept as ready-to-send
+ * PNG bytes. Once the pool drops below the low watermark, the workers refill it up to the high watermark.
+ */
+public class CaptchaPool {
+    public static final int CAPACITY = Integer.parseInt(Helper.getProperty("captchaPoolCapacity", "64"));
+    public static final int LOW_WATERMARK = Integer.parseInt(Helper.getProperty("captchaPoolLowWatermark", "16"));
+    public static final int HIGH_WATERMARK =
+            Integer.parseInt(Helper.getProperty("captchaPoolHighWatermark", String.valueOf(CAPACITY)));
+    public static final int WORKERS = Integer.parseInt(Helper.getProperty("captchaRenderWorkers",
+            String.valueOf(Math.max(Runtime.getRuntime().availableProcessors() / 2, 1))));
+    /*
+     * How long a newcomer may wait for a captcha if the pool is empty, after that they are asked to come back later.
+     */
+    public static final long WAIT_MILLIS = Long.parseLong(Helper.getProperty("captchaPoolWaitMillis", "3000"));
+
+    private static final CaptchaPool INSTANCE = new CaptchaPool();
+
+    private final BlockingQueue<Pair<byte[], String>> captchas = new ArrayBlockingQueue<>(Math.max(CAPACITY, 1));
+    private volatile boolean dry;
+    private boolean refilling = true;
+    private boolean started;
+
+    private CaptchaPool() {
+    }
+
+    public static CaptchaPool getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized void start() {
+        if (started) return;
+
+        for (int i = 0; i < Math.max(WORKERS, 1); i++) {
+            Helper.newThread("Captcha Renderer #" + i, this::runWorker, true);
+        }
+        started = true;
+    }
+
+    /*
+     * Returns null if no captcha became available within WAIT_MILLIS.
+     */
+    public Pair<byte[], String> take() throws InterruptedException {
+        Pair<byte[], String> captcha = captchas.poll();
+        if (captcha == null) {
+            if (!dry) {
+                dry = true;
+                Log.w("The captcha pool has run dry, consider increasing its capacity or the number of render workers");
+            }
+
+            captcha = captchas.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (captchas.size() < LOW_WATERMARK) startRefilling();
+
+        return captcha;
+    }
+
+    private synchronized void startRefilling() {
+        if (refilling) return;
+
+        refilling = true;
+        notifyAll();
+    }
+
+    private synchronized void awaitRefilling() throws InterruptedException {
+        while (!refilling) wait();
+    }
+
+    private synchronized void offer(Pair<byte[], String> captcha) {
+        captchas.offer(captcha);
+
+        if (captchas.size() >= Math.min(HIGH_WATERMARK, CAPACITY)) {
+            refilling = false;
+            dry = false;
+        }
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void runWorker() {
+        PngEncoder encoder = new PngEncoder();
+        while (true) {
+            try {
+                awaitRefilling();
+
+                offer(render(encoder));
+            } catch (InterruptedException e) {
+                encoder.close();
+
+                return;
+            } catch (Throwable t) {
+                Log.w("Failed to render a captcha", t);
+            }
+        }
+    }
+
+    private static Pair<byte[], String> render(PngEncoder encoder) throws IOException {
+        Pair<BufferedImage, String> captcha = CaptchaProvider.generateCaptcha();
+
+        return new Pair<>(encoder.encode(captcha.first()), captcha.second());
+    }
+}
@@ -1,8 +1,10 @@
 package ru.deewend.cheshka.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
@@ -16,14 +18,19 @@ public class CheshkaServer {
     public static final int MAX_IDLE_TIME_MILLIS;
     public static final boolean USE_CAPTCHA;
     public static final boolean SHOW_PROPERTIES;
+    public static final boolean USE_NIO_TRANSPORT;
+    public static final int EVENT_LOOP_THREADS;
+    public static final int MAX_INBOUND_PACKET_SIZE;
     public static final byte ACTION_ACCEPT = 0;
     public static final byte ACTION_ACCEPT_AND_CLOSE_LATER = 1;
     public static final byte ACTION_CLOSE_NOW = 2;
     public static final String PROPERTY_PREFIX = "cheshka.server.";
+    public static final String TRANSPORT_BLOCKING = "blocking";
+    public static final String TRANSPORT_NIO = "nio";
 
     private final Random random = new Random();
     private volatile int onlinePlayerCount;
-    private final Set<GameRoom> gameRooms = new HashSet<>();
+    private final GameRooms gameRooms = (new GameRooms()).start();
     private final Set<ClientHandler> authenticatedUsers = new HashSet<>();
 
     static {
@@ -52,16 +59,56 @@ public class CheshkaServer {
         }
 
         MAX_IDLE_TIME_MILLIS = (int) TimeUnit.SECONDS.toMillis(maxIdleTimeSeconds);
+
+        String transport = Helper.getProperty("transport", TRANSPORT_BLOCKING);
+        if (!transport.equals(TRANSPORT_BLOCKING) && !transport.equals(TRANSPORT_NIO)) {
+            throw new IllegalArgumentException("Unknown transport: " + transport +
+                    ", expected " + TRANSPORT_BLOCKING + " or " + TRANSPORT_NIO);
+        }
+        USE_NIO_TRANSPORT = transport.equals(TRANSPORT_NIO);
+        EVENT_LOOP_THREADS = Integer.parseInt(Helper.getProperty("eventLoopThreads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        MAX_INBOUND_PACKET_SIZE = Integer.parseInt(Helper.getProperty("maxInboundPacketSize", "8192"));
     }
 
     public static void main(String[] args) throws Throwable {
         (new CheshkaServer()).run();
     }
 
-    @SuppressWarnings("InfiniteLoopStatement")
     public void run() throws IOException {
         Helper.newThread("Updater", (new UpdateTask(this)), true);
+        if (USE_CAPTCHA) CaptchaPool.getInstance().start();
+
+        if (USE_NIO_TRANSPORT) {
+            runEventLoops();
+        } else {
+            runBlocking();
+        }
+    }
+
+    private void runEventLoops() throws IOException {
+        EventLoop[] eventLoops = new EventLoop[Math.max(EVENT_LOOP_THREADS, 1)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(this);
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(SERVER_PORT));
+        eventLoops[0].listen(serverChannel, eventLoops);
+        Log.i("The Cheshka server is listening on port " + SERVER_PORT +
+                " (TCP, " + eventLoops.length + " event loop(s))");
+
+        for (int i = 1; i < eventLoops.length; i++) {
+            Helper.newThread("Event Loop #" + i, eventLoops[i], true);
+        }
+        /*
+         * The remaining threads are daemons, so the main thread should not return.
+         */
+        Thread.currentThread().setName("Event Loop #0");
+        eventLoops[0].run();
+    }
 
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void runBlocking() throws IOException {
         ServerSocket listeningSocket = new ServerSocket(SERVER_PORT);
         Log.i("The Cheshka server is listening on port " + SERVER_PORT + " (TCP)");
 
@@ -70,14 +117,7 @@ public class CheshkaServer {
             socket.setTcpNoDelay(true);
             socket.setSoTimeout(MAX_IDLE_TIME_MILLIS);
 
-            byte action;
-            synchronized (this) {
-                int onlinePlayerCount = ++this.onlinePlayerCount;
-
-                if (onlinePlayerCount <= MAX_ONLINE_PLAYER_COUNT)                action = ACTION_ACCEPT;
-                else if (onlinePlayerCount <= MAX_ONLINE_PLAYER_COUNT_SOFT_KICK) action = ACTION_ACCEPT_AND_CLOSE_LATER;
-                else                                                             action = ACTION_CLOSE_NOW;
-            }
+            byte action = admit();
 
             ClientHandler handler;
             if (action == ACTION_ACCEPT) {
@@ -94,6 +134,22 @@ public class CheshkaServer {
         }
     }
 
+    /*
+     * In case of ACTION_CLOSE_NOW the connection is not counted.
+     */
+    public synchronized byte admit() {
+        int onlinePlayerCount = ++this.onlinePlayerCount;
+
+        byte action;
+        if (onlinePlayerCount <= MAX_ONLINE_PLAYER_COUNT)                action = ACTION_ACCEPT;
+        else if (onlinePlayerCount <= MAX_ONLINE_PLAYER_COUNT_SOFT_KICK) action = ACTION_ACCEPT_AND_CLOSE_LATER;
+        else                                                             action = ACTION_CLOSE_NOW;
+
+        if (action == ACTION_CLOSE_NOW) this.onlinePlayerCount--;
+
+        return action;
+    }
+
     public Random getRandom() {
         return random;
     }
@@ -106,8 +162,8 @@ public class CheshkaServer {
         onlinePlayerCount--;
     }
 
-    public void accessGameRooms(Helper.Providable<Set<GameRoom>> providable) {
-        provide(gameRooms, providable);
+    public GameRooms getGameRooms() {
+        return gameRooms;
     }
 
     public void accessAuthenticatedUsers(Helper.Providable<Set<ClientHandler>> providable) {
@@ -3,17 +3,17 @@ package ru.deewend.cheshka.server;
 import ru.deewend.cheshka.server.annotation.Clientbound;
 import ru.deewend.cheshka.server.packet.*;
 
-import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.Socket;
 import java.util.ArrayDeque;
 import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static ru.deewend.cheshka.server.Helper.getClassName;
 
@@ -21,18 +21,61 @@ public class ClientHandler implements Runnable {
     public static final int MAX_PACKET_COUNT_IN_QUEUE = 24;
     public static final int CAPTCHA_ATTEMPTS = 10;
     public static final int MAX_UNEXPECTED_PACKET_COUNT_IN_A_ROW = 5;
+    public static final int FRAME_INPUT_BUFFER_SIZE = 1024;
+    public static final int OUTBOUND_QUEUE_DEPTH_WARNING =
+            Integer.parseInt(Helper.getProperty("outboundQueueDepthWarning", "64"));
+    private static final PreEncodedPacket OVERLOADED = PreEncodedPacket.disconnect(
+            "Unfortunately, the server is currently overloaded. Please try again later");
+    private static final PreEncodedPacket BAD_MAGIC =
+            PreEncodedPacket.disconnect("Unsupported protocol: bad magic value");
+    private static final PreEncodedPacket OUTDATED_CLIENT =
+            PreEncodedPacket.disconnect("Outdated client, please update to 1.1.1");
+    private static final PreEncodedPacket OUTDATED_SERVER = PreEncodedPacket.disconnect(
+            "Outdated server, only 1.1d, 1.1d_2, 1.1 and 1.1.1 clients are supported");
+    private static final PreEncodedPacket BAD_USERNAME = PreEncodedPacket.disconnect("Bad username. Should be from " +
+            "2 to 16 characters long, should contain only 0-9, a-z, A-Z, dot and underscore symbols");
+    private static final PreEncodedPacket NO_CAPTCHA_AVAILABLE = PreEncodedPacket.disconnect(
+            "Too many players are joining the server right now. Please try again in a minute");
+    private static final PreEncodedPacket CAPTCHA_NOT_COMPLETED =
+            PreEncodedPacket.disconnect("Captcha challenge was not completed");
+    private static final PreEncodedPacket UNKNOWN_MATCHMAKING_MODE =
+            PreEncodedPacket.disconnect("Unknown InitiateMatchmaking mode");
+    static final PreEncodedPacket OPPONENT_NOT_FOUND = new PreEncodedPacket(new OpponentNotFound());
     private static final Set<Class<? extends Packet>> HANDLED_BY_GAME_ROOM =
             Set.of(CancelMatchmaking.class, RollDice.class, MakeMove.class, Resign.class);
+    private static final LogRateLimiter CONNECT_LOG = LogRateLimiter.create("connects");
+    private static final LogRateLimiter DISCONNECT_LOG = LogRateLimiter.create("disconnects");
+    private static final byte STATE_AWAITING_HELLO = 0;
+    private static final byte STATE_AWAITING_IDENTIFICATION = 1;
+    private static final byte STATE_AWAITING_CAPTCHA_ANSWER = 2;
+    private static final byte STATE_LOBBY = 3;
 
     private final CheshkaServer cheshkaServer;
-    private final Socket socket;
+    private final SocketTransport socketTransport; // null if the client is served by an EventLoop
+    private final Transport transport;
+    private final OutboundQueue outboundQueue;
     private DataInputStream inputStream;
-    private volatile OutputStream outputStream;
+    private DataInputStream frameInputStream;
+    private byte[] frameBuffer;
+    private PacketDecoder frameDecoder;
     private final boolean closeBecauseOfOverload;
-    private Packet received;
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+    private byte state = STATE_AWAITING_HELLO;
+    private int protocolVersion = Helper.SERVER_VERSION_CODE;
+    private byte inboundSignatureScheme = Helper.SIGNATURE_SCHEME_CRC32;
+    private String pendingUsername;
+    private int captchaAttempts;
+    private volatile String captchaAnswer;
+    private String captchaTrackerKey;
+    /*
+     * Whether CaptchaAttemptTracker counts a challenge of this client which has not been answered yet.
+     */
+    private final AtomicBoolean captchaOutstanding = new AtomicBoolean();
+    private int unexpectedInARow;
     private volatile String username;
     private volatile UUID clientId;
     final Queue<Packet> gameRoomPacketQueue = new ArrayDeque<>();
+    final PacketPool packetPool = new PacketPool();
     volatile boolean matchmaking;
     volatile GameRoom gameRoom;
 
@@ -41,172 +84,312 @@ public class ClientHandler implements Runnable {
     }
 
     public ClientHandler(CheshkaServer cheshkaServer, Socket socket, boolean closeBecauseOfOverload) {
+        this(cheshkaServer, new SocketTransport(socket), closeBecauseOfOverload);
+    }
+
+    public ClientHandler(CheshkaServer cheshkaServer, NioTransport transport, boolean closeBecauseOfOverload) {
+        this(cheshkaServer, (Transport) transport, closeBecauseOfOverload);
+    }
+
+    private ClientHandler(CheshkaServer cheshkaServer, Transport transport, boolean closeBecauseOfOverload) {
         this.cheshkaServer = cheshkaServer;
-        this.socket = socket;
+        this.socketTransport = (transport instanceof SocketTransport socket ? socket : null);
+        this.transport = transport;
+        this.outboundQueue = new OutboundQueue(transport);
         this.closeBecauseOfOverload = closeBecauseOfOverload;
     }
 
+    /*
+     * Only used when the client is served by a dedicated thread. Otherwise, an EventLoop
+     * calls start() and then handlePacket(Packet) for every packet it has decoded.
+     */
     @Override
     public void run() {
         Throwable t = null;
-        try (Socket socket = this.socket) {
-            inputStream = new DataInputStream(socket.getInputStream());
-            outputStream = socket.getOutputStream();
+        try {
+            inputStream = new DataInputStream(socketTransport.getInputStream());
 
-            run0();
+            if (start()) {
+                //noinspection StatementWithEmptyBody
+                while (handlePacket(receivePacket())) ;
+            }
         } catch (Throwable th) {
             t = th;
         } finally {
-            cheshkaServer.accessAuthenticatedUsers(authenticatedUsers -> authenticatedUsers.remove(this));
+            if (t == null) {
+                close(); // the socket will be closed once the queued packets (e.g. Disconnect) are sent
+            } else {
+                transport.close();
+            }
 
-            if (username != null) {
-                String logoutMessage = username + " disconnected";
+            onDisconnect(t);
+        }
+    }
 
-                if (t == null) {
-                    Log.i(logoutMessage);
+    void onDisconnect(Throwable t) {
+        if (!disconnected.compareAndSet(false, true)) return;
+
+        if (captchaOutstanding.compareAndSet(true, false)) {
+            CaptchaAttemptTracker.getInstance().onFailure(captchaTrackerKey);
+        }
+
+        cheshkaServer.accessAuthenticatedUsers(authenticatedUsers -> authenticatedUsers.remove(this));
+        GameRoom room = gameRoom;
+        if (room != null) cheshkaServer.getGameRooms().wakeUp(room); // a waiting room is closed once its host leaves
+
+        if (username != null) {
+            String logoutMessage = username + " disconnected";
+
+            if (t == null) {
+                DISCONNECT_LOG.i(logoutMessage);
+            } else {
+                String reason = switch (t) {
+                    case @SuppressWarnings("unused") EOFException eof -> "EOF";
+                    case @SuppressWarnings("unused") IOException io -> "I/O issue";
+                    case @SuppressWarnings("unused") Exception exception -> "exception";
+                    default -> "error";
+                };
+                String fullMessage = logoutMessage + " (" + reason + ")";
+
+                if (t instanceof IOException /* including EOF */) {
+                    DISCONNECT_LOG.l(Log.LOG_LEVEL_INFO, reason, fullMessage, null);
                 } else {
-                    String reason = switch (t) {
-                        case @SuppressWarnings("unused") EOFException eof -> "EOF";
-                        case @SuppressWarnings("unused") IOException io -> "I/O issue";
-                        case @SuppressWarnings("unused") Exception exception -> "exception";
-                        default -> "error";
-                    };
-                    String fullMessage = logoutMessage + " (" + reason + ")";
-
-                    if (t instanceof IOException /* including EOF */) {
-                        Log.i(fullMessage);
-                    } else {
-                        Log.w(fullMessage, t);
-                    }
+                    DISCONNECT_LOG.l(Log.LOG_LEVEL_WARN, reason, fullMessage, t);
                 }
             }
-
-            cheshkaServer.decrementOnlinePlayerCount();
         }
+
+        cheshkaServer.decrementOnlinePlayerCount();
     }
 
     public void externalClose() {
-        externalSendPacket(null);
+        close();
     }
 
     public void externalSendPacket(Packet packet) {
-        if (outputStream == null) return;
-
-        //noinspection resource (?)
-        ForkJoinPool.commonPool().execute(() -> {
-            try {
-                sendPacket(packet);
-            } catch (IOException ignored) {
-            }
-        });
+        sendPacket(packet);
     }
 
-    private void handleAcceptInvite(String invitationCode) throws IOException {
+    private void handleAcceptInvite(String invitationCode) {
         if (!Helper.checkInvitationCode(invitationCode)) {
-            sendPacket(new OpponentNotFound());
+            sendPreEncodedPacket(OPPONENT_NOT_FOUND);
 
             return;
         }
 
-        cheshkaServer.accessGameRooms(gameRooms -> {
-            for (GameRoom room : gameRooms) {
-                if (invitationCode.equals(room.getInvitationCode())) {
-                    room.connectOpponentPlayer(this);
-
-                    return;
-                }
-            }
-
-            externalSendPacket(new OpponentNotFound());
-        });
+        if (!cheshkaServer.getGameRooms().acceptInvite(invitationCode, this)) {
+            sendPreEncodedPacket(OPPONENT_NOT_FOUND);
+        }
     }
 
     private void handleCreateInvite() {
-        gameRoom = new GameRoom(cheshkaServer, this, true);
+        GameRoom room = cheshkaServer.getGameRooms().createInvite(cheshkaServer, this);
+        gameRoom = room;
 
-        cheshkaServer.accessGameRooms(gameRooms -> gameRooms.add(gameRoom));
+        MatchmakingStarted matchmakingStarted = new MatchmakingStarted();
+        matchmakingStarted.hasInvitationCode = room.hasInvitationCode();
+        matchmakingStarted.invitationCode = room.getInvitationCode();
+        sendPacket(matchmakingStarted);
     }
 
     private void handleRandomMatchmaking() {
-        cheshkaServer.accessGameRooms(gameRooms -> {
-            for (GameRoom room : gameRooms) {
-                if (!room.hasInvitationCode() && room.isMatchmaking()) {
-                    room.connectOpponentPlayer(this);
-
-                    return;
-                }
-            }
-            gameRoom = new GameRoom(cheshkaServer, this, false);
-
-            gameRooms.add(gameRoom);
-        });
+        /*
+         * Sent beforehand, since the game may start (and OpponentFound may be sent by
+         * another thread) as soon as an opponent is found.
+         */
+        sendPacket(new MatchmakingStarted());
+
+        GameRoom room = cheshkaServer.getGameRooms().matchmake(cheshkaServer, this);
+        if (room != null) gameRoom = room;
     }
 
-    private void run0() throws IOException {
+    /*
+     * Returns false if the connection should be closed.
+     */
+    boolean start() {
         if (closeBecauseOfOverload) {
-            sendDisconnect("Unfortunately, the server is currently overloaded. Please try again later");
+            sendPreEncodedPacket(OVERLOADED);
 
-            return;
+            return false;
         }
-        receivePacket(ClientHello.class);
-        ClientHello clientHello = (ClientHello) received;
+
+        return true;
+    }
+
+    /*
+     * Returns false if the connection should be closed. Packets of a single client
+     * are never handled concurrently, but not necessarily by the same thread.
+     */
+    boolean handlePacket(Packet received) throws IOException {
+        return switch (state) {
+            case STATE_AWAITING_HELLO -> handleClientHello(expect(received, ClientHello.class));
+            case STATE_AWAITING_IDENTIFICATION ->
+                    handleIdentification(expect(received, ClientIdentification.class));
+            case STATE_AWAITING_CAPTCHA_ANSWER -> handleCaptchaAnswer(expect(received, ClientIdentification.class));
+            case STATE_LOBBY -> handleLobbyPacket(received);
+            default -> throw new IllegalStateException("Unknown state: " + state);
+        };
+    }
+
+    /*
+     * Whether handling the packet might wait for the disk or for a lock held by someone else for a while:
+     * the handshake looks up and registers verified clients in the DB and joins authenticated users, and
+     * matchmaking takes the locks of game rooms. An EventLoop serves many clients at once, so it hands such
+     * packets to a separate thread. Anything else must only take short locks, e.g. in-game packets are just
+     * queued for the game room.
+     */
+    boolean mightBlock(Packet received) {
+        return state != STATE_LOBBY || received instanceof InitiateMatchmaking;
+    }
+
+    private boolean handleClientHello(ClientHello clientHello) {
         if (clientHello.magic != Helper.CLIENT_HELLO_MAGIC) {
-            sendDisconnect("Unsupported protocol: bad magic value");
+            sendPreEncodedPacket(BAD_MAGIC);
 
-            return;
+            return false;
         }
-        if (clientHello.protocolVersion != Helper.SERVER_VERSION_CODE) {
-            boolean less = (clientHello.protocolVersion < Helper.SERVER_VERSION_CODE);
-            String message;
-            if (less) message = "Outdated client, please update to 1.1.1";
-            else      message = "Outdated server, only 1.1d, 1.1d_2, 1.1 and 1.1.1 clients are supported";
-            sendDisconnect(message);
+        int version = clientHello.protocolVersion;
+        if (version < Helper.SERVER_VERSION_CODE || version > Helper.LATEST_PROTOCOL_VERSION_CODE) {
+            boolean less = (version < Helper.SERVER_VERSION_CODE);
+            sendPreEncodedPacket(less ? OUTDATED_CLIENT : OUTDATED_SERVER);
 
-            return;
+            return false;
         }
-        sendPacket(new ServerHello());
+        protocolVersion = version;
+        byte serverCapabilities = 0;
+        byte signatureScheme = Helper.SIGNATURE_SCHEME_CRC32;
+        if (version >= Helper.FRAMED_PROTOCOL_VERSION_CODE) {
+            byte capabilities = clientHello.capabilities;
+            /*
+             * A single signature per packet relies on serverbound packets being framed.
+             */
+            if ((capabilities & ClientHello.CAPABILITY_PACKET_SIGNATURES) != 0) {
+                signatureScheme = Helper.SIGNATURE_SCHEME_PACKET_CRC32C;
+                serverCapabilities = ClientHello.CAPABILITY_PACKET_SIGNATURES;
+            } else if ((capabilities & ClientHello.CAPABILITY_CRC32C_SIGNATURES) != 0) {
+                signatureScheme = Helper.SIGNATURE_SCHEME_CRC32C;
+                serverCapabilities = ClientHello.CAPABILITY_CRC32C_SIGNATURES;
+            }
+            if ((capabilities & ClientHello.CAPABILITY_PIPELINED_HANDSHAKE) != 0) {
+                serverCapabilities |= ClientHello.CAPABILITY_PIPELINED_HANDSHAKE;
+                /*
+                 * If ClientIdentification has been received together with ClientHello, everything until
+                 * the lobby (or the captcha challenge) is sent at once, see completeIdentification().
+                 * A client which waits for ServerHello anyway gets it right away.
+                 */
+                if (transport.hasPendingInput()) outboundQueue.cork();
+            }
+        }
+        /*
+         * ServerHello itself is always signed using the legacy scheme, so it has
+         * to be serialized before the outbound queue switches to the negotiated one.
+         */
+        PreEncodedPacket serverHello = PreEncodedPacket.serverHello(version, serverCapabilities);
+        externalSendSerializedPacket(serverHello.get(Helper.SIGNATURE_SCHEME_CRC32));
+        outboundQueue.setSignatureScheme(signatureScheme);
+        inboundSignatureScheme = signatureScheme;
+        state = STATE_AWAITING_IDENTIFICATION;
+
+        return true;
+    }
 
-        receivePacket(ClientIdentification.class);
-        ClientIdentification identification = (ClientIdentification) received;
+    private boolean handleIdentification(ClientIdentification identification) {
         String username = identification.username;
         if (!Helper.validateUsername(username)) {
-            sendDisconnect("Bad username. Should be from " +
-                    "2 to 16 characters long, should contain only 0-9, a-z, A-Z, dot and underscore symbols");
+            sendPreEncodedPacket(BAD_USERNAME);
 
-            return;
+            return false;
         }
         UUID clientId = identification.clientId;
         boolean noClientId = Helper.NULL_UUID_OBJ.equals(clientId);
         if (CheshkaServer.USE_CAPTCHA && (noClientId || !DB.getInstance().isUserVerified(clientId))) {
-            int attempts = 0;
-            while (attempts++ < CAPTCHA_ATTEMPTS) {
-                Pair<BufferedImage, String> captcha = CaptchaProvider.generateCaptcha();
+            pendingUsername = username;
+            state = STATE_AWAITING_CAPTCHA_ANSWER;
 
-                IdentificationResult challengeRequired = new IdentificationResult();
-                challengeRequired.success = false;
-                challengeRequired.captcha = captcha.first();
-                sendPacket(challengeRequired);
+            return sendCaptchaChallenge();
+        }
+        if (!CheshkaServer.USE_CAPTCHA && noClientId) {
+            clientId = UUID.randomUUID();
+        }
+        completeIdentification(username, clientId);
 
-                String answer = captcha.second();
-                //noinspection UnusedAssignment
-                captcha = null;
-                System.gc(); // give JVM a hint that it can free a pretty costly BufferedImage
+        return true;
+    }
+
+    private boolean handleCaptchaAnswer(ClientIdentification identification) {
+        String answer = captchaAnswer;
+        captchaAnswer = null;
+        boolean solved = (answer != null && answer.equalsIgnoreCase(identification.captcha));
+        if (captchaOutstanding.compareAndSet(true, false)) {
+            CaptchaAttemptTracker tracker = CaptchaAttemptTracker.getInstance();
+
+            if (solved) tracker.release(captchaTrackerKey);
+            else        tracker.onFailure(captchaTrackerKey);
+        }
+        if (solved) {
+            completeIdentification(pendingUsername, DB.getInstance().registerVerified());
+
+            return true;
+        }
+        if (captchaAttempts >= CAPTCHA_ATTEMPTS) {
+            sendPreEncodedPacket(CAPTCHA_NOT_COMPLETED);
+
+            return false;
+        }
 
-                receivePacket(ClientIdentification.class);
-                if (answer.equalsIgnoreCase(((ClientIdentification) received).captcha)) break;
+        return sendCaptchaChallenge();
+    }
+
+    /*
+     * Captchas are rendered ahead of time by CaptchaPool. If the pool is empty, waiting for a captcha might
+     * take a while, so it is done by a separate thread to avoid stalling other clients sharing an EventLoop.
+     * Returns false if the connection should be closed.
+     */
+    private boolean sendCaptchaChallenge() {
+        if (captchaTrackerKey == null) captchaTrackerKey = CaptchaAttemptTracker.getKey(transport.getHostAddress());
+        long coolDownMillis = CaptchaAttemptTracker.getInstance().tryAcquire(captchaTrackerKey);
+        if (coolDownMillis > 0L) {
+            long seconds = Math.max(TimeUnit.MILLISECONDS.toSeconds(coolDownMillis), 1L);
+            sendDisconnect("Too many captcha attempts from your network. " +
+                    "Please try again in " + seconds + " second(s)");
+
+            return false;
+        }
+        captchaOutstanding.set(true);
+        captchaAttempts++;
+
+        Helper.newThread("Captcha Challenge", () -> {
+            Pair<byte[], String> captcha;
+            try {
+                captcha = CaptchaPool.getInstance().take();
+            } catch (InterruptedException e) {
+                captcha = null;
             }
-            if (attempts >= CAPTCHA_ATTEMPTS) {
-                // in case of running out of attempts, should be equal to CAPTCHA_ATTEMPTS + 1
-                sendDisconnect("Captcha challenge was not completed");
+            if (captcha == null) {
+                if (captchaOutstanding.compareAndSet(true, false)) {
+                    CaptchaAttemptTracker.getInstance().release(captchaTrackerKey);
+                }
+                sendPreEncodedPacket(NO_CAPTCHA_AVAILABLE);
+                close();
 
                 return;
             }
-            clientId = UUID.randomUUID();
-            DB.getInstance().saveVerified(clientId);
-        }
-        if (!CheshkaServer.USE_CAPTCHA && noClientId) {
-            clientId = UUID.randomUUID();
-        }
+
+            IdentificationResult challengeRequired = new IdentificationResult();
+            challengeRequired.success = false;
+            challengeRequired.captcha = captcha.first();
+            /*
+             * Should be assigned before sending the challenge, the answer might arrive very soon.
+             */
+            captchaAnswer = captcha.second();
+            sendPacket(challengeRequired);
+            outboundQueue.uncork();
+        }, false);
+
+        return true;
+    }
+
+    private void completeIdentification(String username, UUID clientId) {
         IdentificationResult result = new IdentificationResult();
         result.success = true;
         result.displayName = username;
@@ -215,78 +398,67 @@ public class ClientHandler implements Runnable {
 
         this.username = username;
         this.clientId = clientId;
+        pendingUsername = null;
+        state = STATE_LOBBY;
         cheshkaServer.accessAuthenticatedUsers(authenticatedUsers -> authenticatedUsers.add(this));
 
-        Log.i(username + " connected (" + socket.getInetAddress().getHostAddress() + ")");
+        CONNECT_LOG.i(username + " connected (" + transport.getHostAddress() + ")");
 
-        cheshkaServer.accessGameRooms(gameRooms -> {
-            for (GameRoom room : gameRooms) {
-                if (room.reconnectPlayer(this)) return;
-            }
-        });
+        cheshkaServer.getGameRooms().reconnect(this);
 
         externalSendPacket(Helper.craftHomeData(cheshkaServer));
+        outboundQueue.uncork();
+    }
 
-        int unexpectedInARow = 0;
-        boolean incremented = false;
-        while (true) {
-            if (!incremented) unexpectedInARow = 0;
-            incremented = false;
-
-            receivePacket(null);
-            Class<?> clazz = received.getClass();
+    private boolean handleLobbyPacket(Packet received) {
+        Class<?> clazz = received.getClass();
 
-            if (gameRoom != null && gameRoom.isObsolete()) {
-                gameRoom = null;
-                matchmaking = false;
+        if (gameRoom != null && gameRoom.isObsolete()) {
+            gameRoom = null;
+            matchmaking = false;
 
-                clearQueue();
-            }
-            if (gameRoom != null && HANDLED_BY_GAME_ROOM.contains(clazz)) {
-                queueCurrentPacket();
+            clearQueue();
+        }
+        GameRoom room = gameRoom;
+        if (room != null && HANDLED_BY_GAME_ROOM.contains(clazz)) {
+            queuePacket(received);
+            cheshkaServer.getGameRooms().wakeUp(room);
+            unexpectedInARow = 0;
 
-                continue;
-            }
-            if (gameRoom == null && !matchmaking && received instanceof InitiateMatchmaking initiateMatchmaking) {
-                boolean disconnect = false;
-                String code = initiateMatchmaking.invitationCode;
-                switch (initiateMatchmaking.mode) {
-                    case InitiateMatchmaking.MODE_ACCEPT_INVITE -> handleAcceptInvite(code);
-                    case InitiateMatchmaking.MODE_CREATE_INVITE -> handleCreateInvite();
-                    case InitiateMatchmaking.MODE_RANDOM_OPPONENT -> handleRandomMatchmaking();
-                    default -> {
-                        disconnect = true;
-                        sendDisconnect("Unknown InitiateMatchmaking mode");
-                    }
-                }
-                if (disconnect) break;
-
-                matchmaking = (initiateMatchmaking.mode != InitiateMatchmaking.MODE_ACCEPT_INVITE);
-                if (matchmaking) {
-                    MatchmakingStarted matchmakingStarted = new MatchmakingStarted();
-                    if (gameRoom != null) {
-                        matchmakingStarted.hasInvitationCode = gameRoom.hasInvitationCode();
-                        matchmakingStarted.invitationCode = gameRoom.getInvitationCode();
-                    }
-                    sendPacket(matchmakingStarted);
+            return true;
+        }
+        if (gameRoom == null && !matchmaking && received instanceof InitiateMatchmaking initiateMatchmaking) {
+            String code = initiateMatchmaking.invitationCode;
+            matchmaking = (initiateMatchmaking.mode != InitiateMatchmaking.MODE_ACCEPT_INVITE);
+            switch (initiateMatchmaking.mode) {
+                case InitiateMatchmaking.MODE_ACCEPT_INVITE -> handleAcceptInvite(code);
+                case InitiateMatchmaking.MODE_CREATE_INVITE -> handleCreateInvite();
+                case InitiateMatchmaking.MODE_RANDOM_OPPONENT -> handleRandomMatchmaking();
+                default -> {
+                    sendPreEncodedPacket(UNKNOWN_MATCHMAKING_MODE);
+
+                    return false;
                 }
-
-                continue;
             }
-            if (++unexpectedInARow >= MAX_UNEXPECTED_PACKET_COUNT_IN_A_ROW) {
-                sendDisconnect("Too many unexpected packets, the last one was " + clazz.getSimpleName());
+            unexpectedInARow = 0;
 
-                break;
-            }
+            return true;
+        }
+        packetPool.release(received);
+        if (++unexpectedInARow >= MAX_UNEXPECTED_PACKET_COUNT_IN_A_ROW) {
+            sendDisconnect("Too many unexpected packets, the last one was " + clazz.getSimpleName());
 
-            incremented = true;
+            return false;
         }
+
+        return true;
     }
 
-    private synchronized void queueCurrentPacket() {
+    private synchronized void queuePacket(Packet received) {
         if (!(received instanceof MakeMove) && Helper.findPacket(this, received.getClass()) != null) return;
 
         if (gameRoomPacketQueue.size() >= MAX_PACKET_COUNT_IN_QUEUE) {
+            packetPool.release(received);
             disconnectAsync("Too many queued packets");
 
             return;
@@ -295,10 +467,18 @@ public class ClientHandler implements Runnable {
     }
 
     private synchronized void clearQueue() {
-        gameRoomPacketQueue.clear();
+        Packet packet;
+        while ((packet = gameRoomPacketQueue.poll()) != null) packetPool.release(packet);
     }
 
-    private void sendDisconnect(String reason) throws IOException {
+    /*
+     * Should be called by the game room once it has processed a packet taken from gameRoomPacketQueue.
+     */
+    void recyclePacket(Packet packet) {
+        packetPool.release(packet);
+    }
+
+    private void sendDisconnect(String reason) {
         sendPacket(craftDisconnectPacket(reason));
     }
 
@@ -315,7 +495,7 @@ public class ClientHandler implements Runnable {
         return disconnect;
     }
 
-    private void sendPacket(Packet packet) throws IOException {
+    private void sendPacket(Packet packet) {
         if (packet == null) {
             close();
 
@@ -327,32 +507,95 @@ public class ClientHandler implements Runnable {
                     clazz.getName() + " packet which is not annotated as @Clientbound");
         }
 
-        try {
-            packet.send(outputStream);
-        } catch (ReflectiveOperationException e) {
-            throw new RuntimeException("Sending a packet", e);
+        checkOutboundQueueDepth(outboundQueue.enqueue(packet));
+    }
+
+    /*
+     * The packet is expected to be serialized by Packet#serialize(byte) using getSignatureScheme().
+     */
+    public void externalSendSerializedPacket(byte[] serializedPacket) {
+        checkOutboundQueueDepth(outboundQueue.enqueue(serializedPacket));
+    }
+
+    public void sendPreEncodedPacket(PreEncodedPacket packet) {
+        externalSendSerializedPacket(packet.get(getSignatureScheme()));
+    }
+
+    private void checkOutboundQueueDepth(int depth) {
+        if (depth == OUTBOUND_QUEUE_DEPTH_WARNING) {
+            Log.w((username != null ? username : transport.getHostAddress()) + " is not keeping up, " +
+                    OUTBOUND_QUEUE_DEPTH_WARNING + " packets are waiting to be sent");
         }
     }
 
-    private void receivePacket(Class<? extends Packet> expecting) throws IOException {
-        try {
-            received = Packet.deserialize(inputStream);
-        } catch (ReflectiveOperationException e) {
-            throw new RuntimeException("Receiving a packet", e);
+    private Packet receivePacket() throws IOException {
+        if (!isFramed()) {
+            try {
+                return Packet.deserialize(inputStream, packetPool);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Receiving a packet", e);
+            }
+        }
+        if (frameInputStream == null) {
+            /*
+             * The unbuffered stream hasn't read anything past ClientHello, so it's safe to switch.
+             */
+            frameInputStream = new DataInputStream(
+                    new BufferedInputStream(socketTransport.getInputStream(), FRAME_INPUT_BUFFER_SIZE));
+            frameDecoder = new PacketDecoder();
+        }
+        int length = frameInputStream.readInt();
+        PacketDecoder.checkFrameLength(length);
+        if (frameBuffer == null || frameBuffer.length < length) {
+            frameBuffer = new byte[Math.max(length, FRAME_INPUT_BUFFER_SIZE)];
         }
+        frameInputStream.readFully(frameBuffer, 0, length);
 
-        if (expecting != null && !expecting.isInstance(received)) {
+        return frameDecoder.decodeFrame(frameBuffer, 0, length, packetPool, inboundSignatureScheme);
+    }
+
+    boolean isFramed() {
+        return protocolVersion >= Helper.FRAMED_PROTOCOL_VERSION_CODE;
+    }
+
+    byte getInboundSignatureScheme() {
+        return inboundSignatureScheme;
+    }
+
+    public byte getSignatureScheme() {
+        return outboundQueue.getSignatureScheme();
+    }
+
+    private static <T extends Packet> T expect(Packet received, Class<T> expecting) throws IOException {
+        if (!expecting.isInstance(received)) {
             throw new IOException("Expected to receive " +
                     getClassName(expecting) + " packet, got " + getClassName(received));
         }
+
+        return expecting.cast(received);
     }
 
     public boolean isClosed() {
-        return socket.isClosed();
+        return transport.isClosed();
+    }
+
+    /*
+     * Unlike isClosed(), becomes true as soon as the client has stopped being served,
+     * even if the queued packets are still being sent.
+     */
+    public boolean hasDisconnected() {
+        return disconnected.get();
     }
 
+    /*
+     * Packets which were sent before calling this method will still be delivered.
+     */
     public void close() {
-        Helper.close(socket);
+        outboundQueue.enqueueClose();
+    }
+
+    public int getOutboundQueueDepth() {
+        return outboundQueue.getDepth();
     }
 
     public String getUsername() {
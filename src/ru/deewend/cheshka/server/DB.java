@@ -1,12 +1,16 @@
 package ru.deewend.cheshka.server;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
-import java.nio.file.OpenOption;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 public class DB {
     public static final boolean DISABLE_AUTOMATIC_DB_CLEANUP =
@@ -17,20 +21,86 @@ public class DB {
             Double.parseDouble(Helper.getProperty("maxOutdatedDBEntriesPercentage", "15"));
     public static final double OUTDATED_DB_ENTRIES_SCAN_INTERVAL_DAYS =
             Double.parseDouble(Helper.getProperty("outdatedDBEntriesScanIntervalDays", "7"));
-
-    private static final long MAX_CAPTCHA_VERIFICATION_AGE_MS =
+    /*
+     * Verifications which arrive within this interval are appended to the DB at once.
+     */
+    public static final long DB_FLUSH_INTERVAL_MILLIS =
+            Long.parseLong(Helper.getProperty("dbFlushIntervalMillis", "100"));
+    /*
+     * If enabled, a verification is only considered saved once it has reached the storage device.
+     */
+    public static final boolean DB_FORCE_WRITES = Boolean.parseBoolean(Helper.getProperty("dbForceWrites", "false"));
+    public static final String DB_BACKEND_FILE = "file";
+    public static final String DB_BACKEND_SEGMENTED = "segmented";
+    public static final String DB_BACKEND_MAPPED = "mapped";
+    /*
+     * "segmented" moves the records of an existing "file" DB to segments on startup, "mapped" imports
+     * them once its file is created. "mapped" is meant for datasets which don't fit in the heap comfortably.
+     */
+    public static final String DB_BACKEND = Helper.getProperty("dbBackend", DB_BACKEND_SEGMENTED);
+    /*
+     * If enabled, verified clients get a signed identifier (see VerificationTokens) instead of a store entry.
+     */
+    public static final boolean USE_VERIFICATION_TOKENS =
+            Boolean.parseBoolean(Helper.getProperty("verificationTokens", "false"));
+    /*
+     * Whether identifiers issued before enabling verificationTokens are still looked up in the store.
+     */
+    public static final boolean VERIFICATION_TOKEN_DB_FALLBACK =
+            Boolean.parseBoolean(Helper.getProperty("verificationTokenDBFallback", "true"));
+    /*
+     * One client identifier per line, the lines starting with # are ignored. Reloaded once modified.
+     */
+    public static final File REVOCATION_LIST_FILE =
+            new File(Helper.getProperty("revocationListFile", "revokedClientIdentifiers.txt"));
+    public static final int ENTRY_SIZE = 24;
+
+    static final long MAX_CAPTCHA_VERIFICATION_AGE_MS =
             (long) (TimeUnit.DAYS.toMillis(1L) * MAX_CAPTCHA_VERIFICATION_AGE_DAYS);
-    private static final double MAX_OUTDATED_DB_ENTRIES_FRACTION = MAX_OUTDATED_DB_ENTRIES_PERCENTAGE / 100.0D;
+    static final double MAX_OUTDATED_DB_ENTRIES_FRACTION = MAX_OUTDATED_DB_ENTRIES_PERCENTAGE / 100.0D;
     private static final double OUTDATED_DB_ENTRIES_SCAN_INTERVAL_MS =
             (long) (TimeUnit.DAYS.toMillis(1L) * OUTDATED_DB_ENTRIES_SCAN_INTERVAL_DAYS);
+    private static final long REVOCATION_LIST_CHECK_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10L);
 
     private static final DB INSTANCE = new DB();
 
-    private final File dbFile = new File("verifiedClientIdentifiers.db");
-    private final File dbTmpFile = new File("verifiedClientIdentifiers.db.tmp");
+    private final VerificationStore store;
+    private final IndexedVerificationStore indexedStore; // null unless the store performs lookups by itself
+    /*
+     * Mirrors the store (unless it's indexed), so logins don't have to read it.
+     */
+    private final VerifiedClientIndex index = new VerifiedClientIndex();
+    /*
+     * VerifiedClientIndex expects modifications to be serialized.
+     */
+    private final Object indexLock = new Object();
+    private final Queue<PendingEntry> pendingEntries = new ConcurrentLinkedQueue<>();
+    private final Thread writerThread;
+    /*
+     * Only the presence of an identifier matters. Replaced as a whole on reload.
+     */
+    private volatile VerifiedClientIndex revokedClients = new VerifiedClientIndex();
+    private long revocationListLastModified;
+    private long lastTimeRevocationListChecked;
     private long lastTimeScanned;
 
+    private record PendingEntry(long most, long least, long timestamp, CompletableFuture<Void> future) {
+    }
+
     private DB() {
+        store = switch (DB_BACKEND) {
+            case DB_BACKEND_FILE -> new FileVerificationStore();
+            case DB_BACKEND_SEGMENTED -> new SegmentedVerificationStore();
+            case DB_BACKEND_MAPPED -> new MappedVerificationStore();
+            default -> throw new IllegalArgumentException("Unknown DB backend: " + DB_BACKEND + ", expected " +
+                    DB_BACKEND_FILE + ", " + DB_BACKEND_SEGMENTED + " or " + DB_BACKEND_MAPPED);
+        };
+        indexedStore = (store instanceof IndexedVerificationStore indexed ? indexed : null);
+        if (!USE_VERIFICATION_TOKENS || VERIFICATION_TOKEN_DB_FALLBACK) loadIndex();
+        loadRevocationList();
+
+        writerThread = Thread.ofPlatform().name("DB Writer").daemon().start(this::runWriter);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::writePendingEntries, "DB Shutdown"));
     }
 
     public static DB getInstance() {
@@ -38,166 +108,171 @@ public class DB {
     }
 
     public void tick() {
+        long currentTime = System.currentTimeMillis();
+        if (currentTime - lastTimeRevocationListChecked >= REVOCATION_LIST_CHECK_INTERVAL_MS) {
+            lastTimeRevocationListChecked = currentTime;
+            if (REVOCATION_LIST_FILE.lastModified() != revocationListLastModified) loadRevocationList();
+        }
         if (DISABLE_AUTOMATIC_DB_CLEANUP) return;
 
-        long currentTime = System.currentTimeMillis();
         if (currentTime - lastTimeScanned >= OUTDATED_DB_ENTRIES_SCAN_INTERVAL_MS) {
-            Thread.ofPlatform().name("DB Scan and Cleanup").start(() -> runScanCleanup(true, 0));
+            Thread.ofPlatform().name("DB Scan and Cleanup").start(() -> {
+                store.maintain(currentTime);
+                if (indexedStore != null) return;
+
+                synchronized (indexLock) {
+                    index.removeOlderThan(System.currentTimeMillis() - MAX_CAPTCHA_VERIFICATION_AGE_MS);
+                }
+            });
 
             lastTimeScanned = currentTime;
         }
     }
 
-    @SuppressWarnings("InfiniteLoopStatement")
-    private synchronized void runScanCleanup(boolean scan, int expectedEntriesCount) {
-        byte[] dummy = (scan ? new byte[7] : null);
-        int entries = 0;
-        int outdatedEntries = 0;
-        boolean readingEntry = false;
-        try (
-                DataInputStream stream = openDBInputStream();
-                /*
-                 * The second stream is a thing only when we're performing a cleanup.
-                 */
-                DataOutputStream tmpStream =
-                        new DataOutputStream(!scan ? openBufferedOutputStream(dbTmpFile) : new ByteArrayOutputStream())
-        ) {
-            while (true) {
-                long most = 0L;
-                long least;
-                if (scan) {
-                    stream.readByte(); // uuid, most significant bits, first byte
-                    readingEntry = true;
-                    stream.readFully(dummy); // uuid, most significant bits, remaining 7 bytes
-                } else {
-                    most = stream.readLong();
-                }
-                least = stream.readLong(); // uuid, least significant bits
-                long timestamp = stream.readLong();
-                readingEntry = false;
-
-                if (System.currentTimeMillis() - timestamp >= MAX_CAPTCHA_VERIFICATION_AGE_MS) {
-                    outdatedEntries++;
-                } else if (!scan) {
-                    tmpStream.writeLong(most);
-                    tmpStream.writeLong(least);
-                    tmpStream.writeLong(timestamp);
-                }
-                entries++;
-            }
+    private void loadIndex() {
+        int[] entries = new int[1];
+        try {
+            store.load((most, least, timestamp) -> {
+                index.put(most, least, Math.max(timestamp, 1L));
+                entries[0]++;
+            });
         } catch (IOException e) {
-            if (e instanceof NoSuchFileException) return;
+            Log.w("Reading DB", e);
+        }
+        if (entries[0] > 0) Log.i("Loaded " + entries[0] + " verified client identifier(s)");
+    }
 
-            if (!(e instanceof EOFException)) {
-                String state = (scan ? "scan" : "cleanup");
-                Log.w("Unexpected I/O issue when maintaining DB. State: " + state, e);
+    private void loadRevocationList() {
+        revocationListLastModified = REVOCATION_LIST_FILE.lastModified();
 
-                return;
-            }
-        }
-        if (!scan) {
-            if (entries != expectedEntriesCount) {
-                Log.w("Cancelling the cleanup, found " + entries + " entries " +
-                        "when the expected count was " + expectedEntriesCount);
+        VerifiedClientIndex revokedClients = new VerifiedClientIndex();
+        if (REVOCATION_LIST_FILE.isFile()) {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(REVOCATION_LIST_FILE.toPath());
+            } catch (IOException e) {
+                Log.w("Reading the revocation list", e);
 
                 return;
             }
-            if (!dbFile.delete()) {
-                Log.w("Failed to delete the outdated DB file. This might affect the " +
-                        "result of the further rename operation against the newly created DB file");
-            }
-            if (!dbTmpFile.renameTo(dbFile)) {
-                Log.w("Failed to replace the old DB with the cleaned one");
+            for (String line : lines) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
 
-                return;
-            }
-            Log.i("Successful cleanup");
+                UUID clientId;
+                try {
+                    clientId = UUID.fromString(line);
+                } catch (IllegalArgumentException e) {
+                    Log.w("Invalid client identifier in " + REVOCATION_LIST_FILE + ": " + line);
 
-            return;
+                    continue;
+                }
+                revokedClients.put(clientId.getMostSignificantBits(), clientId.getLeastSignificantBits(), 1L);
+            }
         }
-        if (readingEntry) {
-            Log.w("Got an EOF while reading an entry, the DB might be corrupted");
+        if (revokedClients.size() > 0 || this.revokedClients.size() > 0) {
+            Log.i("Loaded " + revokedClients.size() + " revoked client identifier(s)");
         }
-        if (entries == 0) return;
+        this.revokedClients = revokedClients;
+    }
 
-        double f = (double) outdatedEntries / entries;
-        if (f < MAX_OUTDATED_DB_ENTRIES_FRACTION) return;
+    /*
+     * Doesn't block, even if a cleanup is in progress. In case of verificationTokens, doesn't perform
+     * any I/O unless the identifier is not a valid token and verificationTokenDBFallback is enabled.
+     */
+    public boolean isUserVerified(UUID clientId) {
+        long most = clientId.getMostSignificantBits();
+        long least = clientId.getLeastSignificantBits();
+        if (revokedClients.get(most, least) != 0L) return false;
 
-        Log.i("DB cleanup is required");
+        if (USE_VERIFICATION_TOKENS) {
+            if (VerificationTokens.getInstance().verify(clientId, System.currentTimeMillis())) return true;
+            if (!VERIFICATION_TOKEN_DB_FALLBACK) return false;
+        }
+        long timestamp = (indexedStore != null ? indexedStore.get(most, least) : index.get(most, least));
+        if (timestamp == 0L) return false;
 
-        runScanCleanup(false, entries);
+        return System.currentTimeMillis() - timestamp < MAX_CAPTCHA_VERIFICATION_AGE_MS;
     }
 
-    private DataInputStream openDBInputStream(OpenOption... additionalOptions) throws IOException {
-        return new DataInputStream(openBufferedInputStream(dbFile, additionalOptions));
-    }
+    /*
+     * Returns a new identifier for a client who has just solved the captcha.
+     */
+    public UUID registerVerified() {
+        if (USE_VERIFICATION_TOKENS) return VerificationTokens.getInstance().issue(System.currentTimeMillis());
 
-    private BufferedInputStream openBufferedInputStream(File file, OpenOption... additionalOptions) throws IOException {
-        return new BufferedInputStream(Files.newInputStream(file.toPath(), generateOptions(additionalOptions)));
-    }
+        UUID clientId = UUID.randomUUID();
+        saveVerified(clientId);
 
-    private DataOutputStream openDBOutputStream(OpenOption... additionalOptions) throws IOException {
-        return new DataOutputStream(openBufferedOutputStream(dbFile, additionalOptions));
+        return clientId;
     }
 
-    private BufferedOutputStream openBufferedOutputStream(
-            File file, OpenOption... additionalOptions
-    ) throws IOException {
-        return new BufferedOutputStream(Files.newOutputStream(file.toPath(), generateOptions(additionalOptions)));
-    }
+    /*
+     * The entry is visible to isUserVerified() immediately, while the returned future is completed
+     * once the entry has been written to the DB (or has failed to be written).
+     */
+    public CompletableFuture<Void> saveVerified(UUID clientId) {
+        long most = clientId.getMostSignificantBits();
+        long least = clientId.getLeastSignificantBits();
+        long currentTime = System.currentTimeMillis();
 
-    private OpenOption[] generateOptions(OpenOption... additionalOptions) {
-        OpenOption[] options;
-        if (additionalOptions.length == 0) {
-            /*
-             * CREATE seems to do nothing against input streams opened via Files#newInputStream.
-             */
-            options = new OpenOption[] { StandardOpenOption.CREATE };
+        if (indexedStore != null) {
+            indexedStore.put(most, least, currentTime);
         } else {
-            options = new OpenOption[additionalOptions.length + 1];
-            options[0] = StandardOpenOption.CREATE;
-
-            System.arraycopy(additionalOptions, 0, options, 1, additionalOptions.length);
+            synchronized (indexLock) {
+                index.put(most, least, currentTime);
+            }
         }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        pendingEntries.add(new PendingEntry(most, least, currentTime, future));
+        LockSupport.unpark(writerThread);
 
-        return options;
+        return future;
     }
 
-    public boolean isUserVerified(UUID clientId) {
-        long most = clientId.getMostSignificantBits();
-        long least = clientId.getLeastSignificantBits();
-
-        synchronized (this) {
-            try (DataInputStream stream = openDBInputStream()) {
-                while (true) {
-                    long currentMost = stream.readLong();
-                    long currentLeast = stream.readLong();
-                    long timestamp = stream.readLong();
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void runWriter() {
+        while (true) {
+            while (pendingEntries.isEmpty()) LockSupport.park(this);
 
-                    if (most == currentMost && least == currentLeast) {
-                        return System.currentTimeMillis() - timestamp < MAX_CAPTCHA_VERIFICATION_AGE_MS;
-                    }
-                }
-            } catch (IOException e) {
-                if (!(e instanceof EOFException || e instanceof NoSuchFileException)) Log.w("Reading DB", e);
+            try {
+                /*
+                 * Unlike park(), sleep() is not interrupted by unpark(), so the entries keep accumulating.
+                 */
+                if (DB_FLUSH_INTERVAL_MILLIS > 0L) Thread.sleep(DB_FLUSH_INTERVAL_MILLIS);
+            } catch (InterruptedException ignored) {
             }
+            writePendingEntries();
         }
-
-        return false;
     }
 
-    public void saveVerified(UUID clientId) {
-        long most = clientId.getMostSignificantBits();
-        long least = clientId.getLeastSignificantBits();
-        long currentTime = System.currentTimeMillis();
+    private synchronized void writePendingEntries() {
+        List<PendingEntry> batch = new ArrayList<>();
+        PendingEntry entry;
+        while ((entry = pendingEntries.poll()) != null) batch.add(entry);
+        if (batch.isEmpty()) return;
+
+        long[] entries = new long[batch.size() * 3];
+        for (int i = 0; i < batch.size(); i++) {
+            PendingEntry pending = batch.get(i);
+            entries[i * 3] = pending.most();
+            entries[i * 3 + 1] = pending.least();
+            entries[i * 3 + 2] = pending.timestamp();
+        }
 
-        synchronized (this) {
-            try (DataOutputStream stream = openDBOutputStream(StandardOpenOption.APPEND)) {
-                stream.writeLong(most);
-                stream.writeLong(least);
-                stream.writeLong(currentTime);
-            } catch (IOException e) {
-                Log.w("Writing to DB", e);
+        IOException failure = null;
+        try {
+            store.append(entries, batch.size(), DB_FORCE_WRITES);
+        } catch (IOException e) {
+            Log.w("Writing to DB", e);
+
+            failure = e;
+        }
+        for (PendingEntry pending : batch) {
+            if (failure == null) {
+                pending.future().complete(null);
+            } else {
+                pending.future().completeExceptionally(failure);
             }
         }
     }
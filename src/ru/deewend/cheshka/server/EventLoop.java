@@ -0,0 +1,132 @@
+package ru.deewend.cheshka.server;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class EventLoop implements Runnable {
+    public static final int READ_BUFFER_SIZE = 65536;
+    public static final long SELECT_TIMEOUT_MILLIS = 1000L;
+
+    private final CheshkaServer server;
+    private final Selector selector;
+    /*
+     * Shared by all connections of this event loop, since only one of them is being read at a time.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final PacketDecoder decoder = new PacketDecoder();
+    private final Queue<Pair<SocketChannel, Boolean>> pendingChannels = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+    private EventLoop[] group; // non-null only for the event loop which accepts new connections
+    private int nextEventLoopIdx;
+    private long lastIdleCheck;
+
+    public EventLoop(CheshkaServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    public void listen(ServerSocketChannel serverChannel, EventLoop[] group) throws IOException {
+        this.group = group;
+
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    @SuppressWarnings("InfiniteLoopStatement")
+    public void run() {
+        thread = Thread.currentThread();
+
+        while (true) {
+            try {
+                selector.select(this::process, SELECT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                Log.w("Selector failure", e);
+            }
+            registerPendingChannels();
+
+            long currentTime = System.currentTimeMillis();
+            if (currentTime - lastIdleCheck >= SELECT_TIMEOUT_MILLIS) {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioTransport transport) transport.checkIdle(currentTime);
+                }
+
+                lastIdleCheck = currentTime;
+            }
+        }
+    }
+
+    private void process(SelectionKey key) {
+        if (!key.isValid()) return;
+
+        if (key.isAcceptable()) {
+            try {
+                accept((ServerSocketChannel) key.channel());
+            } catch (IOException e) {
+                Log.w("Failed to accept a connection", e);
+            }
+
+            return;
+        }
+        NioTransport transport = (NioTransport) key.attachment();
+        try {
+            if (key.isWritable()) transport.onWritable();
+            if (key.isValid() && key.isReadable()) transport.onReadable(readBuffer, decoder);
+        } catch (Throwable t) {
+            transport.closeNow(t);
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            byte action = server.admit();
+            if (action == CheshkaServer.ACTION_CLOSE_NOW) {
+                Helper.close(channel);
+
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                Helper.close(channel);
+                server.decrementOnlinePlayerCount();
+
+                continue;
+            }
+            boolean closeBecauseOfOverload = (action == CheshkaServer.ACTION_ACCEPT_AND_CLOSE_LATER);
+
+            EventLoop eventLoop = group[nextEventLoopIdx];
+            nextEventLoopIdx = (nextEventLoopIdx + 1) % group.length;
+            eventLoop.pendingChannels.add(new Pair<>(channel, closeBecauseOfOverload));
+            if (eventLoop != this) eventLoop.selector.wakeup();
+        }
+    }
+
+    private void registerPendingChannels() {
+        Pair<SocketChannel, Boolean> pending;
+        while ((pending = pendingChannels.poll()) != null) {
+            NioTransport transport = new NioTransport(this, pending.first());
+            ClientHandler handler = new ClientHandler(server, transport, pending.second());
+            try {
+                transport.register(selector, handler);
+
+                if (!handler.start()) handler.close();
+            } catch (Throwable t) {
+                transport.closeNow(t);
+            }
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+}
@@ -0,0 +1,217 @@
+package ru.deewend.cheshka.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The original format: a single file of (most, least, timestamp) records. Outdated records are removed
+ * by rewriting the whole file once there are too many of them, which doesn't hold up appends for long.
+ */
+public class FileVerificationStore implements VerificationStore {
+    public static final File DB_FILE = new File("verifiedClientIdentifiers.db");
+
+    private final File dbFile = DB_FILE;
+    private final File dbTmpFile = new File("verifiedClientIdentifiers.db.tmp");
+    private final Object maintenanceLock = new Object();
+    private FileChannel appendChannel; // guarded by this, opened on demand
+
+    /*
+     * A torn write at the end of the file is truncated, otherwise the following appends would be misaligned.
+     */
+    @Override
+    public synchronized void load(EntryConsumer consumer) throws IOException {
+        if (!dbFile.isFile()) return;
+
+        long length = dbFile.length();
+        long validLength = length / DB.ENTRY_SIZE * DB.ENTRY_SIZE;
+        try (DataInputStream stream = openDBInputStream()) {
+            for (long i = validLength / DB.ENTRY_SIZE; i > 0; i--) {
+                long most = stream.readLong();
+                long least = stream.readLong();
+                long timestamp = stream.readLong();
+
+                consumer.accept(most, least, timestamp);
+            }
+        }
+        if (length != validLength) {
+            Log.w("Truncating an incomplete record at the end of " + dbFile);
+
+            try (FileChannel channel = FileChannel.open(dbFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void append(long[] entries, int count, boolean force) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * DB.ENTRY_SIZE);
+        for (int i = 0; i < count * 3; i++) buffer.putLong(entries[i]);
+        buffer.flip();
+
+        try {
+            if (appendChannel == null) {
+                appendChannel = FileChannel.open(dbFile.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            while (buffer.hasRemaining()) appendChannel.write(buffer);
+            if (force) appendChannel.force(false);
+        } catch (IOException e) {
+            closeAppendChannel(); // will be reopened by the next attempt
+
+            throw e;
+        }
+    }
+
+    /*
+     * Only the swap of the files blocks append(). The file is scanned and compacted up to the length
+     * it had when the maintenance started, the records appended since then are copied during the swap.
+     */
+    @Override
+    public void maintain(long currentTime) {
+        synchronized (maintenanceLock) {
+            long snapshotLength;
+            synchronized (this) {
+                snapshotLength = dbFile.length() / DB.ENTRY_SIZE * DB.ENTRY_SIZE;
+            }
+            if (snapshotLength == 0L) return;
+
+            long minTimestamp = currentTime - DB.MAX_CAPTCHA_VERIFICATION_AGE_MS;
+            long entries = snapshotLength / DB.ENTRY_SIZE;
+            long startTime = System.nanoTime();
+            long outdatedEntries;
+            try {
+                outdatedEntries = copyEntries(entries, minTimestamp, null);
+            } catch (IOException e) {
+                Log.w("Unexpected I/O issue when scanning DB", e);
+
+                return;
+            }
+            Log.i("Scanned " + entries + " DB entries in " + millisSince(startTime) + " ms, " +
+                    outdatedEntries + " of them are outdated");
+            if ((double) outdatedEntries / entries < DB.MAX_OUTDATED_DB_ENTRIES_FRACTION) return;
+
+            Log.i("DB cleanup is required");
+            startTime = System.nanoTime();
+            try (DataOutputStream tmpStream = new DataOutputStream(openBufferedOutputStream(dbTmpFile,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            ) {
+                copyEntries(entries, minTimestamp, tmpStream);
+            } catch (IOException e) {
+                Log.w("Unexpected I/O issue when compacting DB", e);
+
+                return;
+            }
+            long compactionMillis = millisSince(startTime);
+
+            startTime = System.nanoTime();
+            long tailLength;
+            try {
+                tailLength = swap(snapshotLength);
+            } catch (IOException e) {
+                Log.w("Failed to replace the old DB with the cleaned one", e);
+
+                return;
+            }
+            Log.i("Successful cleanup: compacted in " + compactionMillis + " ms, swapped in " +
+                    millisSince(startTime) + " ms (" + (tailLength / DB.ENTRY_SIZE) + " entries appended meanwhile)");
+        }
+    }
+
+    /*
+     * Reads the specified number of entries from the beginning of the file. The ones which are
+     * not outdated are written to the stream, if present. Returns the number of outdated entries.
+     */
+    private long copyEntries(long entries, long minTimestamp, DataOutputStream tmpStream) throws IOException {
+        long outdatedEntries = 0L;
+        try (DataInputStream stream = openDBInputStream()) {
+            for (long i = 0; i < entries; i++) {
+                long most = stream.readLong();
+                long least = stream.readLong();
+                long timestamp = stream.readLong();
+
+                if (timestamp < minTimestamp) {
+                    outdatedEntries++;
+                } else if (tmpStream != null) {
+                    tmpStream.writeLong(most);
+                    tmpStream.writeLong(least);
+                    tmpStream.writeLong(timestamp);
+                }
+            }
+        }
+
+        return outdatedEntries;
+    }
+
+    /*
+     * Copies the records appended after snapshotLength to the compacted file, then replaces
+     * the DB file with it. Returns the number of bytes copied.
+     */
+    private synchronized long swap(long snapshotLength) throws IOException {
+        long tailLength;
+        try (
+                FileChannel source = FileChannel.open(dbFile.toPath(), StandardOpenOption.READ);
+                FileChannel target = FileChannel.open(dbTmpFile.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND)
+        ) {
+            tailLength = source.size() - snapshotLength;
+            long position = snapshotLength;
+            while (position < source.size()) {
+                position += source.transferTo(position, source.size() - position, target);
+            }
+            target.force(false);
+        }
+        closeAppendChannel(); // otherwise it would keep appending to the replaced file
+        Files.move(dbTmpFile.toPath(), dbFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return tailLength;
+    }
+
+    private static long millisSince(long startTime) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    private DataInputStream openDBInputStream(OpenOption... additionalOptions) throws IOException {
+        return new DataInputStream(openBufferedInputStream(dbFile, additionalOptions));
+    }
+
+    private BufferedInputStream openBufferedInputStream(File file, OpenOption... additionalOptions) throws IOException {
+        return new BufferedInputStream(Files.newInputStream(file.toPath(), generateOptions(additionalOptions)));
+    }
+
+    private BufferedOutputStream openBufferedOutputStream(
+            File file, OpenOption... additionalOptions
+    ) throws IOException {
+        return new BufferedOutputStream(Files.newOutputStream(file.toPath(), generateOptions(additionalOptions)));
+    }
+
+    private OpenOption[] generateOptions(OpenOption... additionalOptions) {
+        OpenOption[] options;
+        if (additionalOptions.length == 0) {
+            /*
+             * CREATE seems to do nothing against input streams opened via Files#newInputStream.
+             */
+            options = new OpenOption[] { StandardOpenOption.CREATE };
+        } else {
+            options = new OpenOption[additionalOptions.length + 1];
+            options[0] = StandardOpenOption.CREATE;
+
+            System.arraycopy(additionalOptions, 0, options, 1, additionalOptions.length);
+        }
+
+        return options;
+    }
+
+    private void closeAppendChannel() {
+        if (appendChannel == null) return;
+
+        Helper.close(appendChannel);
+        appendChannel = null;
+    }
+}
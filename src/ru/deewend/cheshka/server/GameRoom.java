@@ -6,6 +6,9 @@ import java.util.Queue;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class GameRoom implements Invertible {
     public static final int WAITING_FOR_OPPONENT_TIMEOUT_SECONDS =
@@ -13,10 +16,11 @@ public class GameRoom implements Invertible {
     public static final int TURN_WAITING_TIMEOUT_SECONDS =
             Integer.parseInt(Helper.getProperty("turnWaitingTimeout", "8"));
 
-    private static final int WAITING_FOR_OPPONENT_TIMEOUT_TICKS =
-            WAITING_FOR_OPPONENT_TIMEOUT_SECONDS * CheshkaServer.TICK_RATE_HZ;
+    private static final long WAITING_FOR_OPPONENT_TIMEOUT_MILLIS =
+            TimeUnit.SECONDS.toMillis(WAITING_FOR_OPPONENT_TIMEOUT_SECONDS);
 
     private static final long TURN_WAITING_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(TURN_WAITING_TIMEOUT_SECONDS);
+    private static final LogRateLimiter GAME_START_LOG = LogRateLimiter.create("games started");
 
     private final Random random;
     ClientHandler hostPlayer;
@@ -26,8 +30,20 @@ public class GameRoom implements Invertible {
     private Board board;
     volatile ClientHandler opponentPlayer;
     volatile ClientHandler whoseTurn;
-    private int waitingForOpponentTicks;
+    private final long waitingForOpponentDeadline = System.currentTimeMillis() + WAITING_FOR_OPPONENT_TIMEOUT_MILLIS;
     private volatile boolean obsolete;
+    final ReentrantLock lock = new ReentrantLock(); // held by GameRooms while touching the room
+    GameRooms.Shard shard; // assigned once by GameRooms
+    TimerWheel.Timer<GameRoom> timer; // assigned once by GameRooms
+    /*
+     * Whether the room is waiting in its shard's queue to be visited on the next tick.
+     */
+    final AtomicBoolean awakened = new AtomicBoolean();
+    /*
+     * The number of wake-ups its runner hasn't handled yet, only used in the actor mode.
+     */
+    final AtomicInteger wakeUps = new AtomicInteger();
+    long lastVisit; // only used by the shard's tick
 
     public GameRoom(CheshkaServer cheshkaServer, ClientHandler hostPlayer, boolean hasInvitationCode) {
         random = cheshkaServer.getRandom();
@@ -61,12 +77,12 @@ public class GameRoom implements Invertible {
         }
     }
 
-    @SuppressWarnings("SynchronizeOnNonFinalField")
+    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
     public boolean tick() {
         if (matchmaking) {
-            boolean timeout = (++waitingForOpponentTicks >= WAITING_FOR_OPPONENT_TIMEOUT_TICKS);
+            boolean timeout = (System.currentTimeMillis() >= waitingForOpponentDeadline);
             if (timeout || Helper.findPacket(hostPlayer, CancelMatchmaking.class) != null) {
-                hostPlayer.externalSendPacket(new OpponentNotFound());
+                hostPlayer.sendPreEncodedPacket(ClientHandler.OPPONENT_NOT_FOUND);
 
                 return false;
             }
@@ -74,7 +90,7 @@ public class GameRoom implements Invertible {
              * if (hostPlayer.isClosed()) return false; // host has left, the game won't start
              * return true;
              */
-            return !hostPlayer.isClosed();
+            return !hostPlayer.isClosed() && !hostPlayer.hasDisconnected();
         }
         if (board == null) {
             board = new Board(this, random, CheshkaServer.BOARD_SIZE, TURN_WAITING_TIMEOUT_MILLIS);
@@ -83,7 +99,7 @@ public class GameRoom implements Invertible {
             sendOpponentFound(hostPlayer);
             sendOpponentFound(opponentPlayer);
 
-            Log.i("A game between " +
+            GAME_START_LOG.i("A game between " +
                     hostPlayer.getUsername() + " and " + opponentPlayer.getUsername() + " has started");
         }
         hostPlayer.gameRoom = this;
@@ -93,8 +109,9 @@ public class GameRoom implements Invertible {
 
         boolean hostPlayersTurn = (whoseTurn == hostPlayer);
         boolean whitesTurn = (hostPlayersTurn == hostColor);
-        synchronized (whoseTurn) {
-            Queue<Packet> queue = whoseTurn.gameRoomPacketQueue;
+        ClientHandler currentPlayer = whoseTurn;
+        synchronized (currentPlayer) {
+            Queue<Packet> queue = currentPlayer.gameRoomPacketQueue;
             while (!queue.isEmpty()) {
                 Packet packet = queue.remove();
 
@@ -105,6 +122,7 @@ public class GameRoom implements Invertible {
                 } else {
                     resign((Resign) packet, whitesTurn);
                 }
+                currentPlayer.recyclePacket(packet);
             }
         }
         ClientHandler currentOpponent = (hostPlayersTurn ? opponentPlayer : hostPlayer);
@@ -117,6 +135,30 @@ public class GameRoom implements Invertible {
         return board.getGameState() == Board.GAME_STATE_RUNNING;
     }
 
+    /*
+     * The time the room has to be visited at if nothing happens before.
+     */
+    public long getDeadline() {
+        if (matchmaking) return waitingForOpponentDeadline;
+        if (board == null) return System.currentTimeMillis();
+
+        return board.getTimeoutDeadline();
+    }
+
+    /*
+     * Whether the player whose turn it is now has sent something that hasn't been processed yet
+     * (e.g. because they had queued it before their opponent has finished the turn).
+     */
+    @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
+    public boolean hasQueuedPackets() {
+        ClientHandler currentPlayer = whoseTurn;
+        if (currentPlayer == null) return false;
+
+        synchronized (currentPlayer) {
+            return !currentPlayer.gameRoomPacketQueue.isEmpty();
+        }
+    }
+
     private void resign(Resign resign, boolean white) {
         sendBothAsyncIfNonNull(resign);
 
@@ -218,6 +260,10 @@ public class GameRoom implements Invertible {
         return invitationCode;
     }
 
+    public boolean hasStarted() {
+        return board != null;
+    }
+
     public boolean isObsolete() {
         return obsolete;
     }
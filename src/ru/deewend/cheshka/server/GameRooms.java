@@ -0,0 +1,334 @@
+package ru.deewend.cheshka.server;
+
+import java.util.*;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Game rooms are partitioned into shards, each of them is ticked by its own worker thread, so the game logic
+ * is not limited by a single core. A room stays in the shard it has been created in, and everything touching
+ * a room is done while holding the room's own lock (so it never runs concurrently with the room's tick).
+ * The shard's lock only guards its set of rooms and its timers, and is never held while visiting a room.
+ * Both are ReentrantLocks, so the virtual threads waiting for them don't pin their carriers.
+ * Rooms are found by invitation code and by the client identifiers of their players through concurrent
+ * indices rather than by walking the shards.
+ *
+ * A tick doesn't visit every room either: a room is visited only once its timer (turn or matchmaking
+ * timeout) fires, or after it has been woken up, e.g. because one of its players has sent a packet.
+ * In the "actor" processing mode, rooms aren't visited by the ticks at all. Each room has a runner of its own
+ * which is started once the room is woken up and keeps visiting it until there are no wake-ups left, so
+ * rooms don't wait for each other. The tick only drives the timers, waking up the rooms whose timers fire.
+ */
+public class GameRooms {
+    public static final int TICK_WORKERS = Integer.parseInt(Helper.getProperty("tickWorkers",
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+    /*
+     * With one slot per tick, 512 slots cover more than the turn timeout, so most timers fire on the first turn
+     * of the wheel.
+     */
+    public static final int TIMER_WHEEL_SLOTS = 512;
+    public static final String ROOM_PROCESSING_TICK = "tick";
+    public static final String ROOM_PROCESSING_ACTOR = "actor";
+    public static final String ROOM_PROCESSING = Helper.getProperty("roomProcessing", ROOM_PROCESSING_TICK);
+
+    static class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        final Set<GameRoom> rooms = new HashSet<>(); // guarded by lock
+        final TickBatch tickBatch = new TickBatch();
+        final TimerWheel<GameRoom> timers = // guarded by lock
+                new TimerWheel<>(CheshkaServer.MAX_SLEEP_TIME_MS, TIMER_WHEEL_SLOTS, System.currentTimeMillis());
+        final Queue<GameRoom> awakened = new ConcurrentLinkedQueue<>();
+        final List<GameRoom> due = new ArrayList<>(); // only used by the shard's tick
+        long visits; // only used by the shard's tick, incremented every tick
+    }
+
+    private final Shard[] shards = new Shard[Math.max(TICK_WORKERS, 1)];
+    private final Map<String, GameRoom> roomsByInvitationCode = new ConcurrentHashMap<>();
+    /*
+     * Filled once a game starts, so disconnected players can get back to it.
+     */
+    private final Map<UUID, GameRoom> roomsByClientId = new ConcurrentHashMap<>();
+    /*
+     * Rooms waiting for a random opponent. The ones which have stopped waiting are skipped lazily.
+     */
+    private final Queue<GameRoom> matchmakingRooms = new ArrayDeque<>(); // guarded by matchmakingLock
+    private final ReentrantLock matchmakingLock = new ReentrantLock();
+    private final AtomicInteger count = new AtomicInteger();
+    private final CyclicBarrier tickStarted;
+    private final CyclicBarrier tickFinished;
+    private final boolean actors;
+    private volatile Throwable workerFailure;
+
+    public GameRooms() {
+        actors = switch (ROOM_PROCESSING) {
+            case ROOM_PROCESSING_TICK -> false;
+            case ROOM_PROCESSING_ACTOR -> true;
+            default -> throw new IllegalArgumentException("Unknown room processing mode: " + ROOM_PROCESSING +
+                    ", expected " + ROOM_PROCESSING_TICK + " or " + ROOM_PROCESSING_ACTOR);
+        };
+        for (int i = 0; i < shards.length; i++) shards[i] = new Shard();
+
+        tickStarted = new CyclicBarrier(shards.length);
+        tickFinished = new CyclicBarrier(shards.length);
+    }
+
+    public GameRooms start() {
+        /*
+         * The first shard is ticked by UpdateTask itself.
+         */
+        for (int i = 1; i < shards.length; i++) {
+            Shard shard = shards[i];
+            Helper.newThread("Tick Worker #" + i, () -> runWorker(shard), true);
+        }
+
+        return this;
+    }
+
+    public int size() {
+        return count.get();
+    }
+
+    /*
+     * Ticks every room, returns once all the shards are done.
+     */
+    public void tick() throws Throwable {
+        if (shards.length > 1) tickStarted.await();
+        tickShard(shards[0]);
+        if (shards.length > 1) tickFinished.await();
+
+        Throwable failure = workerFailure;
+        if (failure != null) throw failure;
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void runWorker(Shard shard) {
+        try {
+            while (true) {
+                tickStarted.await();
+                try {
+                    shard.tickBatch.begin();
+                    try {
+                        tickShard(shard);
+                    } finally {
+                        shard.tickBatch.end();
+                    }
+                } catch (Throwable t) {
+                    workerFailure = t;
+                }
+                tickFinished.await();
+            }
+        } catch (InterruptedException | BrokenBarrierException e) {
+            workerFailure = e;
+        }
+    }
+
+    private void tickShard(Shard shard) {
+        List<GameRoom> due = shard.due;
+        shard.lock.lock();
+        try {
+            shard.timers.advance(System.currentTimeMillis(), due);
+        } finally {
+            shard.lock.unlock();
+        }
+        if (actors) {
+            for (GameRoom room : due) wakeUp(room);
+            due.clear();
+
+            return;
+        }
+        GameRoom awakenedRoom;
+        while ((awakenedRoom = shard.awakened.poll()) != null) {
+            awakenedRoom.awakened.set(false); // the packets arriving from now on will wake it up again
+            due.add(awakenedRoom);
+        }
+        if (due.isEmpty()) return;
+
+        long visit = ++shard.visits;
+        for (GameRoom room : due) {
+            if (room.lastVisit == visit) continue;
+
+            room.lastVisit = visit;
+            room.lock.lock();
+            try {
+                if (!room.isObsolete()) visit(shard, room);
+            } finally {
+                room.lock.unlock();
+            }
+        }
+        due.clear();
+    }
+
+    /*
+     * Called while holding the room's lock.
+     */
+    private void visit(Shard shard, GameRoom room) {
+        boolean started = room.hasStarted();
+        boolean alive = room.tick();
+        if (!started && room.hasStarted()) {
+            roomsByClientId.put(room.getHostPlayerUUID(), room);
+            roomsByClientId.put(room.getOpponentPlayerUUID(), room);
+        }
+        if (!alive) {
+            remove(shard, room);
+
+            return;
+        }
+        long deadline = room.getDeadline();
+        shard.lock.lock();
+        try {
+            shard.timers.schedule(room.timer, deadline);
+        } finally {
+            shard.lock.unlock();
+        }
+        if (room.hasQueuedPackets()) wakeUp(room);
+    }
+
+    /*
+     * Makes sure the room is visited on the next tick, or as soon as possible in the actor mode.
+     * Can be called from any thread.
+     */
+    public void wakeUp(GameRoom room) {
+        if (actors) {
+            if (room.wakeUps.getAndIncrement() == 0) Helper.newThread("Game Room", () -> runActor(room), false);
+        } else if (room.awakened.compareAndSet(false, true)) {
+            room.shard.awakened.add(room);
+        }
+    }
+
+    /*
+     * Only the wake-up which has found the counter at zero starts a runner, and the runner exits only
+     * once it has brought the counter back to zero, so there is at most one runner per room at a time.
+     * The wake-ups arriving while the room is being visited make the runner visit it once more.
+     */
+    private void runActor(GameRoom room) {
+        int handled;
+        do {
+            handled = room.wakeUps.get();
+            room.lock.lock();
+            try {
+                if (!room.isObsolete()) visit(room.shard, room);
+            } catch (Throwable t) {
+                workerFailure = t; // rethrown by the next tick, as if it has happened there
+            } finally {
+                room.lock.unlock();
+            }
+        } while (room.wakeUps.addAndGet(-handled) != 0);
+    }
+
+    private void remove(Shard shard, GameRoom room) {
+        String invitationCode = room.getInvitationCode();
+        if (invitationCode != null) roomsByInvitationCode.remove(invitationCode, room);
+        roomsByClientId.remove(room.getHostPlayerUUID(), room);
+        UUID opponentPlayerUUID = room.getOpponentPlayerUUID();
+        if (opponentPlayerUUID != null) roomsByClientId.remove(opponentPlayerUUID, room);
+
+        room.cleanup();
+        shard.lock.lock();
+        try {
+            shard.timers.cancel(room.timer);
+            shard.rooms.remove(room);
+        } finally {
+            shard.lock.unlock();
+        }
+        count.decrementAndGet();
+    }
+
+    /*
+     * New rooms go to the least loaded shard.
+     */
+    private void add(GameRoom room) {
+        Shard target = shards[0];
+        for (Shard shard : shards) {
+            if (shard.rooms.size() < target.rooms.size()) target = shard; // a racy read is good enough here
+        }
+        room.shard = target;
+        room.timer = new TimerWheel.Timer<>(room);
+        target.lock.lock();
+        try {
+            target.rooms.add(room);
+        } finally {
+            target.lock.unlock();
+        }
+        count.incrementAndGet();
+
+        String invitationCode = room.getInvitationCode();
+        if (invitationCode != null) roomsByInvitationCode.put(invitationCode, room);
+        wakeUp(room); // schedules its timer
+    }
+
+    public GameRoom createInvite(CheshkaServer server, ClientHandler hostPlayer) {
+        GameRoom room = new GameRoom(server, hostPlayer, true);
+        add(room);
+
+        return room;
+    }
+
+    /*
+     * Returns false if there is no room waiting for an opponent with that code.
+     */
+    public boolean acceptInvite(String invitationCode, ClientHandler player) {
+        GameRoom room = roomsByInvitationCode.remove(invitationCode);
+        if (room == null) return false;
+
+        room.lock.lock();
+        try {
+            if (room.isObsolete() || !invitationCode.equals(room.getInvitationCode())) return false;
+
+            room.connectOpponentPlayer(player);
+        } finally {
+            room.lock.unlock();
+        }
+        wakeUp(room);
+
+        return true;
+    }
+
+    /*
+     * Returns the new room if there was no one to play with, otherwise null.
+     */
+    public GameRoom matchmake(CheshkaServer server, ClientHandler player) {
+        matchmakingLock.lock();
+        try {
+            GameRoom room;
+            while ((room = matchmakingRooms.poll()) != null) {
+                room.lock.lock();
+                try {
+                    if (room.isObsolete() || !room.isMatchmaking()) continue;
+
+                    room.connectOpponentPlayer(player);
+                } finally {
+                    room.lock.unlock();
+                }
+                wakeUp(room);
+
+                return null;
+            }
+            room = new GameRoom(server, player, false);
+            add(room);
+            matchmakingRooms.add(room);
+
+            return room;
+        } finally {
+            matchmakingLock.unlock();
+        }
+    }
+
+    /*
+     * Returns true if the player has got back to a running game.
+     */
+    public boolean reconnect(ClientHandler player) {
+        GameRoom room = roomsByClientId.get(player.getClientId());
+        if (room == null) return false;
+
+        room.lock.lock();
+        try {
+            return !room.isObsolete() && room.reconnectPlayer(player);
+        } finally {
+            room.lock.unlock();
+        }
+    }
+}
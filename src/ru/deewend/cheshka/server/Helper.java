@@ -3,11 +3,9 @@ package ru.deewend.cheshka.server;
 import ru.deewend.cheshka.server.annotation.Order;
 import ru.deewend.cheshka.server.packet.HomeData;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.lang.reflect.Field;
-import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -15,9 +13,12 @@ import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.WeakHashMap;
 import java.util.stream.Collectors;
 import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
 
 public class Helper {
     public interface Providable<T> {
@@ -25,6 +26,11 @@ public class Helper {
     }
 
     public static final int SERVER_VERSION_CODE = 5;
+    /*
+     * Starting from this version, every serverbound packet except ClientHello is prefixed with its length (int).
+     */
+    public static final int FRAMED_PROTOCOL_VERSION_CODE = 6;
+    public static final int LATEST_PROTOCOL_VERSION_CODE = FRAMED_PROTOCOL_VERSION_CODE;
     public static final String DEFAULT_STRING_VALUE = "";
     public static final String NULL_UUID = "00000000-0000-0000-0000-000000000000";
     public static final UUID NULL_UUID_OBJ = UUID.fromString(NULL_UUID);
@@ -51,6 +57,27 @@ public class Helper {
 
     public static final int SIGNATURE_MAGIC = 0xA115E11C; // reverted Helper.CLIENT_HELLO_MAGIC
 
+    /*
+     * Each string and image field is followed by CRC32(contents) ^ SIGNATURE_MAGIC.
+     */
+    public static final byte SIGNATURE_SCHEME_CRC32 = 0;
+    /*
+     * Same as above, but CRC32C is used. Negotiated via ClientHello.CAPABILITY_CRC32C_SIGNATURES.
+     */
+    public static final byte SIGNATURE_SCHEME_CRC32C = 1;
+    /*
+     * Fields are not signed, instead each packet is followed by CRC32C(packet) ^ SIGNATURE_MAGIC. For serverbound
+     * packets the signature is a part of the frame. Negotiated via ClientHello.CAPABILITY_PACKET_SIGNATURES.
+     */
+    public static final byte SIGNATURE_SCHEME_PACKET_CRC32C = 2;
+    public static final int SIGNATURE_SCHEME_COUNT = 3;
+    public static final int PACKET_SIGNATURE_SIZE = 4;
+
+    /*
+     * Weak keys, so images which are not sent anymore are not held by the cache.
+     */
+    private static final Map<BufferedImage, byte[]> ENCODED_IMAGES = Collections.synchronizedMap(new WeakHashMap<>());
+
     private Helper() {
     }
 
@@ -79,14 +106,33 @@ public class Helper {
         return (int) crc32.getValue();
     }
 
-    private static byte[] readByteArray(DataInputStream stream) throws IOException {
+    public static int calculateCRC32C(byte[] data, int offset, int length) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(data, offset, length);
+
+        return (int) crc32c.getValue();
+    }
+
+    private static int calculateSignature(byte[] contents, byte signatureScheme) {
+        int checksum;
+        if (signatureScheme == SIGNATURE_SCHEME_CRC32C) {
+            checksum = calculateCRC32C(contents, 0, contents.length);
+        } else {
+            checksum = calculateCRC32(contents);
+        }
+
+        return checksum ^ SIGNATURE_MAGIC;
+    }
+
+    private static byte[] readByteArray(DataInputStream stream, byte signatureScheme) throws IOException {
         int length = stream.readUnsignedShort();
-        int signature = stream.readInt();
+        boolean signed = (signatureScheme != SIGNATURE_SCHEME_PACKET_CRC32C);
+        int signature = (signed ? stream.readInt() : 0);
 
         byte[] contents = new byte[length];
         stream.readFully(contents);
 
-        if ((signature ^ SIGNATURE_MAGIC) != calculateCRC32(contents)) {
+        if (signed && signature != calculateSignature(contents, signatureScheme)) {
             throw new IOException("Bad signature");
         }
 
@@ -94,35 +140,61 @@ public class Helper {
     }
 
     public static void writeByteArray(DataOutputStream stream, byte[] contents) throws IOException {
+        writeByteArray(stream, contents, SIGNATURE_SCHEME_CRC32);
+    }
+
+    public static void writeByteArray(
+            DataOutputStream stream, byte[] contents, byte signatureScheme
+    ) throws IOException {
         int length = contents.length;
 
         if (length > MAX_FIELD_SIZE) {
             throw new RuntimeException("Array is too long");
         }
         stream.writeShort(length);
-        int signature = calculateCRC32(contents) ^ SIGNATURE_MAGIC;
-        stream.writeInt(signature);
+        if (signatureScheme != SIGNATURE_SCHEME_PACKET_CRC32C) {
+            stream.writeInt(calculateSignature(contents, signatureScheme));
+        }
 
         stream.write(contents);
     }
 
     public static String readString(DataInputStream stream) throws IOException {
-        byte[] contents = readByteArray(stream);
+        return readString(stream, SIGNATURE_SCHEME_CRC32);
+    }
+
+    public static String readString(DataInputStream stream, byte signatureScheme) throws IOException {
+        byte[] contents = readByteArray(stream, signatureScheme);
 
         return new String(contents, StandardCharsets.UTF_8);
     }
 
     public static void writeString(DataOutputStream stream, String str) throws IOException {
+        writeString(stream, str, SIGNATURE_SCHEME_CRC32);
+    }
+
+    public static void writeString(DataOutputStream stream, String str, byte signatureScheme) throws IOException {
         byte[] contents = str.getBytes(StandardCharsets.UTF_8);
 
-        writeByteArray(stream, contents);
+        writeByteArray(stream, contents, signatureScheme);
     }
 
-    public static void writeBufferedImage(DataOutputStream stream, BufferedImage image) throws IOException {
-        ByteArrayOutputStream stream0 = new ByteArrayOutputStream(MAX_FIELD_SIZE / 2);
-        ImageIO.write(image, "png", stream0);
+    /*
+     * The image is encoded only once (the server logo is sent in every HomeData), so it
+     * should not be modified after it has been written for the first time.
+     */
+    public static void writeBufferedImage(
+            DataOutputStream stream, BufferedImage image, byte signatureScheme
+    ) throws IOException {
+        byte[] png = ENCODED_IMAGES.get(image);
+        if (png == null) {
+            try (PngEncoder encoder = new PngEncoder()) {
+                png = encoder.encode(image);
+            }
+            ENCODED_IMAGES.put(image, png);
+        }
 
-        writeByteArray(stream, stream0.toByteArray());
+        writeByteArray(stream, png, signatureScheme);
     }
 
     public static List<Field> fixOrder(Field[] fields) {
@@ -189,7 +261,7 @@ public class Helper {
     public static HomeData craftHomeData(CheshkaServer server) {
         HomeData homeData = new HomeData();
         homeData.onlinePlayerCount = server.getOnlinePlayerCount();
-        server.accessGameRooms(gameRooms -> homeData.activeGamesCount = gameRooms.size());
+        homeData.activeGamesCount = server.getGameRooms().size();
 
         return homeData;
     }
@@ -233,9 +305,9 @@ public class Helper {
         return true;
     }
 
-    public static void close(Socket socket) {
+    public static void close(Closeable closeable) {
         try {
-            socket.close();
+            closeable.close();
         } catch (IOException ignored) {
         }
     }
@@ -0,0 +1,18 @@
+package ru.deewend.cheshka.server;
+
+/*
+ * A store which is able to look up entries by itself, so DB doesn't have to mirror it in memory.
+ * Such a store doesn't pass anything to the consumer in load(), and the entries it receives
+ * in append() have already been put, so append() only has to make them durable.
+ */
+public interface IndexedVerificationStore extends VerificationStore {
+    /*
+     * Returns the timestamp, or 0 if the client is unknown. Shouldn't block.
+     */
+    long get(long most, long least);
+
+    /*
+     * The entry should become visible to get() immediately. The timestamp should be positive.
+     */
+    void put(long most, long least, long timestamp);
+}
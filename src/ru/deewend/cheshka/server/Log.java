@@ -8,6 +8,8 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Log {
     public static final byte LOG_LEVEL_INFO = 0;
@@ -24,10 +26,43 @@ public class Log {
 
     private static final DateFormat FORMAT =
             new SimpleDateFormat(Helper.getProperty("logFormat", "[HH:mm:ss dd.MM.yyyy] "));
-    private static final boolean SHOULD_SAVE_LOGS_ON_DISK =
+    static final boolean SHOULD_SAVE_LOGS_ON_DISK =
             Boolean.parseBoolean(Helper.getProperty("shouldSaveLogsOnDisk", "true"));
-    private static final String LOG_FILE_NAME_FORMAT =
+    static final String LOG_FILE_NAME_FORMAT =
             Helper.getProperty("logFileNameFormat", "dd-MM-yyyy-logs.txt");
+    /*
+     * Formatting is skipped for the lines logged within the same second, unless the format has milliseconds.
+     */
+    private static final boolean CACHE_TIMESTAMP = !((SimpleDateFormat) FORMAT).toPattern().contains("S");
+    /*
+     * Guarded by Log.class, unless used by AsyncLogWriter.
+     */
+    static final LogFileWriter FILE_WRITER = (SHOULD_SAVE_LOGS_ON_DISK ? new LogFileWriter() : null);
+    /*
+     * If enabled, the entries are written by a background thread (see AsyncLogWriter).
+     * Severe entries are still flushed before Log.s() returns.
+     */
+    private static final boolean ASYNC_LOGGING = Boolean.parseBoolean(Helper.getProperty("asyncLogging", "false"));
+    private static final AsyncLogWriter ASYNC_WRITER = (ASYNC_LOGGING ? (new AsyncLogWriter()).start() : null);
+    /*
+     * A stack trace which has already been logged within this interval is replaced with a reference to it.
+     * 0 disables the deduplication.
+     */
+    private static final long STACK_TRACE_DEDUP_MILLIS =
+            Long.parseLong(Helper.getProperty("stackTraceDedupMillis", "60000"));
+    private static final int MAX_REMEMBERED_STACK_TRACES = 256;
+    private static final int MAX_HASHED_CAUSES = 8;
+    /*
+     * Maps stack trace hashes to {the time it was printed, the number of repeats since then}.
+     */
+    private static final Map<Integer, long[]> STACK_TRACES = new LinkedHashMap<>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, long[]> eldest) {
+            return size() > MAX_REMEMBERED_STACK_TRACES;
+        }
+    };
+    private static long cachedTimestampSecond = Long.MIN_VALUE; // the same synchronization as for FORMAT
+    private static String cachedTimestamp;
 
     public static String f(String fmt, Object... args) {
         return String.format(fmt, args);
@@ -57,7 +92,6 @@ public class Log {
         l(logLevel, message, null);
     }
 
-    @SuppressWarnings("CallToPrintStackTrace")
     public static void l(byte logLevel, String message, Throwable t) {
         String prefix = switch (logLevel) {
             case LOG_LEVEL_INFO -> "[INFO] ";
@@ -65,36 +99,67 @@ public class Log {
             case LOG_LEVEL_SEVERE -> "[SEVERE] ";
             default -> throw new IllegalArgumentException("Unknown logLevel: " + logLevel);
         };
-        PrintStream stream = (logLevel == LOG_LEVEL_INFO ? System.out : System.err);
-        if (!SHOULD_SAVE_LOGS_ON_DISK) {
-            synchronized (Log.class) {
-                print(stream, prefix, message, t);
+        if (t != null && STACK_TRACE_DEDUP_MILLIS > 0L) {
+            int hash = hashStackTrace(t);
+            long repeats = countStackTraceRepeats(hash);
+            String id = "stack trace " + Integer.toHexString(hash);
+            if (repeats == 0L) {
+                message += " [" + id + "]";
+            } else {
+                message += " (" + t + ", the same " + id + " as before, repeated " + repeats + " time(s))";
+                t = null;
             }
+        }
+        if (ASYNC_WRITER != null) {
+            ASYNC_WRITER.enqueue(logLevel, prefix, message, t);
+            if (logLevel == LOG_LEVEL_SEVERE) ASYNC_WRITER.flush();
 
             return;
         }
-        try (FileOutputStream fileStream = getLogFileOutputStream()) {
-            PrintStream filePrintStream = new PrintStream(fileStream);
-
-            synchronized (Log.class) {
-                print(stream, prefix, message, t);
-                print(filePrintStream, prefix, message, t);
+        PrintStream stream = (logLevel == LOG_LEVEL_INFO ? System.out : System.err);
+        long time = System.currentTimeMillis();
+        synchronized (Log.class) {
+            print(stream, time, prefix, message, t);
+            if (FILE_WRITER == null) return;
+
+            PrintStream fileStream = FILE_WRITER.get(time);
+            if (fileStream != null) {
+                print(fileStream, time, prefix, message, t);
+                fileStream.flush();
             }
-        } catch (IOException e) {
-            System.err.println("Failed to print a log entry");
-            e.printStackTrace();
         }
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    private static FileOutputStream getLogFileOutputStream() throws IOException {
-        File logsDir = new File("./logs/");
-        if (!logsDir.isDirectory()) {
-            if (!logsDir.mkdir()) {
-                throw new IOException("Could not create the ./logs/ directory");
+    private static int hashStackTrace(Throwable t) {
+        int hash = 1;
+        for (int i = 0; t != null && i < MAX_HASHED_CAUSES; i++, t = t.getCause()) {
+            hash = 31 * hash + t.getClass().getName().hashCode();
+            for (StackTraceElement element : t.getStackTrace()) hash = 31 * hash + element.hashCode();
+        }
+
+        return hash;
+    }
+
+    /*
+     * Returns 0 if the stack trace should be printed.
+     */
+    private static long countStackTraceRepeats(int hash) {
+        long currentTime = System.currentTimeMillis();
+        synchronized (STACK_TRACES) {
+            long[] entry = STACK_TRACES.get(hash);
+            if (entry == null || currentTime - entry[0] >= STACK_TRACE_DEDUP_MILLIS) {
+                STACK_TRACES.put(hash, new long[] { currentTime, 0L });
+
+                return 0L;
             }
+
+            return ++entry[1];
         }
+    }
+
+    static String getLogFileName(long time) {
         Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
         int dayOfMonth = calendar.get(Calendar.DAY_OF_MONTH);
         int month = calendar.get(Calendar.MONTH) + 1;
         int year = calendar.get(Calendar.YEAR);
@@ -103,7 +168,18 @@ public class Log {
         nameFormat = nameFormat.replace("MM", adjust(month, 2));
         nameFormat = nameFormat.replace("yyyy", adjust(year, 4));
 
-        File currentLogFile = new File(logsDir, nameFormat);
+        return nameFormat;
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    static FileOutputStream getLogFileOutputStream(String name) throws IOException {
+        File logsDir = new File("./logs/");
+        if (!logsDir.isDirectory()) {
+            if (!logsDir.mkdir()) {
+                throw new IOException("Could not create the ./logs/ directory");
+            }
+        }
+        File currentLogFile = new File(logsDir, name);
         currentLogFile.createNewFile();
 
         return new FileOutputStream(currentLogFile, true);
@@ -133,12 +209,27 @@ public class Log {
         return String.valueOf(chars);
     }
 
-    private static void print(
-            PrintStream stream, String prefix, String message, Throwable t
+    /*
+     * Should be called either while holding the Log.class monitor or by AsyncLogWriter.
+     */
+    static void print(
+            PrintStream stream, long time, String prefix, String message, Throwable t
     ) {
-        stream.println(FORMAT.format(new Date()) + prefix + message);
+        stream.println(formatTimestamp(time) + prefix + message);
         if (t != null) {
             t.printStackTrace(stream);
         }
     }
+
+    private static String formatTimestamp(long time) {
+        if (!CACHE_TIMESTAMP) return FORMAT.format(new Date(time));
+
+        long second = Math.floorDiv(time, 1000L);
+        if (second != cachedTimestampSecond) {
+            cachedTimestamp = FORMAT.format(new Date(time));
+            cachedTimestampSecond = second;
+        }
+
+        return cachedTimestamp;
+    }
 }
@@ -0,0 +1,139 @@
+package ru.deewend.cheshka.server;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Keeps the current day's log file open and switches to the next one at midnight. The files of the previous
+ * days are gzipped by a background thread, which also deletes the ones older than RETENTION_DAYS. Not thread-safe.
+ */
+public class LogFileWriter {
+    public static final boolean COMPRESS_LOGS = Boolean.parseBoolean(Helper.getProperty("compressLogs", "true"));
+    /*
+     * 0 means the logs are kept forever.
+     */
+    public static final int RETENTION_DAYS = Integer.parseInt(Helper.getProperty("logRetentionDays", "30"));
+    public static final File LOGS_DIRECTORY = new File("./logs/");
+
+    private static final String COMPRESSED_SUFFIX = ".gz";
+
+    private final Pattern namePattern = Pattern.compile(Pattern.quote(Log.LOG_FILE_NAME_FORMAT)
+            .replace("dd", "\\E\\d{2}\\Q").replace("MM", "\\E\\d{2}\\Q").replace("yyyy", "\\E\\d{4}\\Q") +
+            "(" + Pattern.quote(COMPRESSED_SUFFIX) + ")?");
+    /*
+     * Volatile, because it is read by the background thread. Assigned before the file is created.
+     */
+    private volatile String name;
+    private PrintStream stream;
+    private long dayStart = Long.MAX_VALUE;
+    private long nextDayStart = Long.MIN_VALUE;
+    /*
+     * The latest time get() was called with. Entries may arrive slightly out of order (e.g. from AsyncLogWriter),
+     * an older one is written to the current file, so the day never goes back to a file which is being gzipped.
+     */
+    private long latestTime = Long.MIN_VALUE;
+    private final AtomicBoolean cleaningUp = new AtomicBoolean();
+    private volatile boolean cleanUpRequested;
+
+    /*
+     * Returns null if the file couldn't be opened, in this case another attempt is made the next day.
+     */
+    @SuppressWarnings("CallToPrintStackTrace")
+    public PrintStream get(long time) {
+        time = Math.max(time, latestTime);
+        latestTime = time;
+        if (time >= dayStart && time < nextDayStart) return stream;
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        dayStart = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        nextDayStart = calendar.getTimeInMillis();
+
+        String name = Log.getLogFileName(time);
+        if (name.equals(this.name)) return stream;
+
+        if (stream != null) stream.close();
+        stream = null;
+        this.name = name;
+        try {
+            stream = new PrintStream(new BufferedOutputStream(Log.getLogFileOutputStream(name)), false);
+        } catch (IOException e) {
+            System.err.println("Failed to open the log file");
+            e.printStackTrace();
+        }
+        if (COMPRESS_LOGS || RETENTION_DAYS > 0) requestCleanUp();
+
+        return stream;
+    }
+
+    /*
+     * Only one cleanup runs at a time. If another one is requested meanwhile, the running one starts over.
+     */
+    private void requestCleanUp() {
+        cleanUpRequested = true;
+        if (!cleaningUp.compareAndSet(false, true)) return;
+
+        Helper.newThread("Log Compressor", () -> {
+            do {
+                while (cleanUpRequested) {
+                    cleanUpRequested = false;
+                    cleanUp(System.currentTimeMillis());
+                }
+                cleaningUp.set(false);
+            } while (cleanUpRequested && cleaningUp.compareAndSet(false, true));
+        }, true);
+    }
+
+    public void flush() {
+        if (stream != null) stream.flush();
+    }
+
+    /*
+     * Handles all the old files rather than just the previous one, in case the server was down at midnight.
+     */
+    @SuppressWarnings("CallToPrintStackTrace")
+    private void cleanUp(long currentTime) {
+        File[] files = LOGS_DIRECTORY.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(this.name) || !namePattern.matcher(name).matches()) continue;
+
+            if (RETENTION_DAYS > 0 &&
+                    currentTime - file.lastModified() > TimeUnit.DAYS.toMillis(RETENTION_DAYS)
+            ) {
+                if (!file.delete()) System.err.println("Failed to delete an old log file " + file);
+
+                continue;
+            }
+            if (!COMPRESS_LOGS || name.endsWith(COMPRESSED_SUFFIX)) continue;
+
+            File compressedFile = new File(LOGS_DIRECTORY, name + COMPRESSED_SUFFIX);
+            try (
+                    InputStream input = Files.newInputStream(file.toPath());
+                    OutputStream output = new GZIPOutputStream(Files.newOutputStream(compressedFile.toPath()))
+            ) {
+                input.transferTo(output);
+            } catch (IOException e) {
+                System.err.println("Failed to compress the log file " + file);
+                e.printStackTrace();
+
+                continue;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            compressedFile.setLastModified(file.lastModified()); // keeps the retention going by the original date
+            if (!file.delete()) System.err.println("Failed to delete the compressed log file " + file);
+        }
+    }
+}
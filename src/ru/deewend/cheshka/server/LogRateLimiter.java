@@ -0,0 +1,87 @@
+package ru.deewend.cheshka.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Limits the number of entries logged by a single call site (such as connects and disconnects) during
+ * a summary interval. The rest are counted and reported once per interval, e.g. "4,312 disconnects (EOF)
+ * in the last 10s". A call site may split its entries into several kinds, each of them is limited separately.
+ */
+public class LogRateLimiter {
+    public static final int MAX_ENTRIES_PER_INTERVAL = Integer.parseInt(Helper.getProperty("logRateLimit", "20"));
+    public static final long SUMMARY_INTERVAL_MILLIS =
+            Long.parseLong(Helper.getProperty("logSummaryIntervalMillis", "10000"));
+
+    private static final List<LogRateLimiter> LIMITERS = new CopyOnWriteArrayList<>();
+    private static long lastTimeSummarized = System.currentTimeMillis(); // accessed only by the ticking thread
+
+    private static class Counter {
+        final byte logLevel;
+        final AtomicInteger total = new AtomicInteger();
+        final AtomicInteger suppressed = new AtomicInteger();
+
+        Counter(byte logLevel) {
+            this.logLevel = logLevel;
+        }
+    }
+
+    private final String description;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private LogRateLimiter(String description) {
+        this.description = description;
+    }
+
+    /*
+     * The description is used in summaries, so it should be plural, e.g. "connects".
+     */
+    public static LogRateLimiter create(String description) {
+        LogRateLimiter limiter = new LogRateLimiter(description);
+        LIMITERS.add(limiter);
+
+        return limiter;
+    }
+
+    public void i(String message) {
+        l(Log.LOG_LEVEL_INFO, "", message, null);
+    }
+
+    public void l(byte logLevel, String kind, String message, Throwable t) {
+        Counter counter = counters.computeIfAbsent(kind, k -> new Counter(logLevel));
+        if (counter.total.incrementAndGet() <= MAX_ENTRIES_PER_INTERVAL) {
+            Log.l(logLevel, message, t);
+        } else {
+            counter.suppressed.incrementAndGet();
+        }
+    }
+
+    /*
+     * Called by the ticking thread.
+     */
+    public static void tick() {
+        long currentTime = System.currentTimeMillis();
+        long elapsed = currentTime - lastTimeSummarized;
+        if (elapsed < SUMMARY_INTERVAL_MILLIS) return;
+
+        lastTimeSummarized = currentTime;
+        for (LogRateLimiter limiter : LIMITERS) limiter.summarize(elapsed);
+    }
+
+    private void summarize(long elapsed) {
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            int total = counter.total.getAndSet(0);
+            int suppressed = counter.suppressed.getAndSet(0);
+            if (suppressed == 0) continue;
+
+            String kind = entry.getKey();
+            Log.l(counter.logLevel, Log.f("%,d %s%s in the last %ds (%,d of them not logged)",
+                    total, description, (kind.isEmpty() ? "" : " (" + kind + ")"),
+                    Math.max(Math.round(elapsed / 1000.0D), 1L), suppressed));
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package ru.deewend.cheshka.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Keeps the entries in a memory-mapped open addressing hash table, so the dataset is limited by the disk
+ * rather than by the heap. Slots have the same layout as the records of the other stores (most significant
+ * bits, least significant bits, timestamp), a zero timestamp means a free slot. The only thing kept in the
+ * heap is a Bloom filter, which rejects most of the unknown identifiers without touching the mapped file.
+ *
+ * Lookups are lock-free, modifications are serialized. Outdated entries are removed by rebuilding
+ * the table once there are too many of them (see DB.MAX_OUTDATED_DB_ENTRIES_PERCENTAGE), and the table
+ * is grown by rebuilding it as well. A rebuild copies the table without holding the lock, so puts keep
+ * going meanwhile. They are also recorded in a journal, which is replayed on the new table right before it
+ * replaces the current one.
+ */
+public class MappedVerificationStore implements IndexedVerificationStore {
+    public static final File FILE = new File("verifiedClientIdentifiers.map");
+    public static final int BLOOM_FILTER_BITS_PER_ENTRY =
+            Integer.parseInt(Helper.getProperty("dbBloomFilterBitsPerEntry", "10"));
+
+    private static final long MAGIC = 0x4348534B564D4150L; // "CHSKVMAP"
+    private static final int HEADER_SIZE = 16; // magic, capacity and padding, keeps the slots 8-byte aligned
+    private static final int MIN_CAPACITY = 1 << 16;
+    /*
+     * A single MappedByteBuffer can't exceed 2 GiB.
+     */
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final int JOURNAL_ENTRY_SIZE = 3; // most significant bits, least significant bits, timestamp
+
+    private static class Table {
+        final MappedByteBuffer buffer;
+        final int mask;
+        final AtomicLongArray bloomFilter;
+        final int bloomFilterMask;
+        final int bloomFilterHashes;
+
+        Table(MappedByteBuffer buffer, int capacity) {
+            this.buffer = buffer;
+            this.mask = capacity - 1;
+
+            /*
+             * The table is grown once it's half full.
+             */
+            long bits = Math.max(64L, (long) capacity / 2 * BLOOM_FILTER_BITS_PER_ENTRY);
+            int words = (int) Math.min(1L << 24, Long.highestOneBit(bits - 1) << 1 >>> 6);
+            this.bloomFilter = new AtomicLongArray(words);
+            this.bloomFilterMask = words * 64 - 1;
+            int hashes = (int) Math.round(BLOOM_FILTER_BITS_PER_ENTRY * Math.log(2.0D)); // the optimal number
+            this.bloomFilterHashes = Math.max(1, Math.min(16, hashes));
+        }
+    }
+
+    private final Object maintenanceLock = new Object(); // serializes the rebuilds
+    private volatile Table table; // modifications are guarded by this, null if the file couldn't be opened
+    private int size; // guarded by this
+    /*
+     * The number of rebuilds which are running or waiting for their turn, the journal is non-null while
+     * it's not zero. Guarded by this, as well as the fields below.
+     */
+    private int rebuilds;
+    private long[] journal;
+    private int journalSize;
+    private boolean growing;
+    private boolean importing;
+
+    @Override
+    public synchronized void load(EntryConsumer consumer) throws IOException {
+        if (FILE.isFile()) {
+            try {
+                table = open(FILE);
+            } catch (IOException e) {
+                File corruptedFile = new File(FILE.getPath() + ".corrupted");
+                Log.w("Opening " + FILE + ", moving it to " + corruptedFile, e);
+
+                Files.move(FILE.toPath(), corruptedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (table == null) {
+            table = create(FILE, MIN_CAPACITY);
+            importEntries();
+        }
+        Log.i("Opened " + FILE + " (" + size + " entries, " + (table.mask + 1) + " slots)");
+    }
+
+    /*
+     * Moves the entries of the other stores, the migrated files are left as is.
+     */
+    private void importEntries() throws IOException {
+        VerificationStore source;
+        if (SegmentedVerificationStore.DIRECTORY.isDirectory() || FileVerificationStore.DB_FILE.isFile()) {
+            source = new SegmentedVerificationStore(); // migrates the single-file DB on its own
+        } else {
+            return;
+        }
+
+        Log.i("Importing verified client identifiers to " + FILE);
+        long oldestLiveTimestamp = System.currentTimeMillis() - DB.MAX_CAPTCHA_VERIFICATION_AGE_MS;
+        importing = true; // nobody else is using the store yet, so the table is grown right away
+        try {
+            source.load((most, least, timestamp) -> {
+                if (timestamp >= oldestLiveTimestamp) put(most, least, Math.max(timestamp, 1L));
+            });
+        } finally {
+            importing = false;
+        }
+        table.buffer.force();
+    }
+
+    @Override
+    public long get(long most, long least) {
+        Table table = this.table;
+        if (table == null || !mightContain(table, most, least)) return 0L;
+
+        MappedByteBuffer buffer = table.buffer;
+        for (int i = hash(most, least) & table.mask; ; i = (i + 1) & table.mask) {
+            int offset = getOffset(i);
+            long timestamp = (long) LONGS.getAcquire(buffer, offset + 16);
+            if (timestamp == 0L) return 0L;
+
+            if ((long) LONGS.get(buffer, offset) == most && (long) LONGS.get(buffer, offset + 8) == least) {
+                return timestamp;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void put(long most, long least, long timestamp) {
+        if (table == null) return;
+
+        if ((size + 1) * 2L > table.mask + 1L && !growing && table.mask + 1 < MAX_CAPACITY) {
+            if (importing) {
+                try {
+                    swap(copy(table, (table.mask + 1) * 2, Long.MIN_VALUE));
+                } catch (IOException e) {
+                    Log.w("Growing " + FILE, e);
+                }
+            } else {
+                growing = true;
+                startRebuild();
+                Helper.newThread("DB Growth", this::grow, true);
+            }
+        }
+        /*
+         * The entries put during a rebuild may be missing from the copy. Replaying the ones which are
+         * already there is harmless, since the journal keeps the order.
+         */
+        if (journal != null) record(most, least, timestamp);
+        if (size + 1 > table.mask) { // one slot has to stay free, otherwise lookups won't terminate
+            if (journal == null) Log.w(FILE + " is full, a verification won't be saved");
+
+            return; // otherwise it will get to the new table
+        }
+
+        if (insert(table, most, least, timestamp)) size++;
+    }
+
+    /*
+     * The entries are already there, only have to make sure they have reached the storage device.
+     */
+    @Override
+    public void append(long[] entries, int count, boolean force) {
+        Table table = this.table;
+        if (force && table != null) table.buffer.force();
+    }
+
+    @Override
+    public void maintain(long currentTime) {
+        Table table = this.table;
+        if (table == null) return;
+
+        long minTimestamp = currentTime - DB.MAX_CAPTCHA_VERIFICATION_AGE_MS;
+        long started = System.currentTimeMillis();
+        MappedByteBuffer buffer = table.buffer;
+        int used = 0;
+        int outdated = 0;
+        for (int i = 0; i <= table.mask; i++) {
+            long timestamp = (long) LONGS.getAcquire(buffer, getOffset(i) + 16);
+            if (timestamp == 0L) continue;
+
+            used++;
+            if (timestamp < minTimestamp) outdated++;
+        }
+        if (outdated == 0 || outdated < used * DB.MAX_OUTDATED_DB_ENTRIES_FRACTION) return;
+
+        /*
+         * Leaves room for the entries put meanwhile, so the table isn't grown right after being cleaned up.
+         */
+        int capacity = MIN_CAPACITY;
+        while (capacity < (used - outdated) * 4L && capacity < MAX_CAPACITY) capacity *= 2;
+        synchronized (this) {
+            startRebuild();
+        }
+        try {
+            rebuild(capacity, minTimestamp);
+            Log.i("Removed " + outdated + " outdated entries from " + FILE + " in " +
+                    (System.currentTimeMillis() - started) + " ms");
+        } catch (IOException e) {
+            Log.w("Cleaning up " + FILE, e);
+        }
+    }
+
+    private void grow() {
+        try {
+            rebuild(0, Long.MIN_VALUE);
+        } catch (IOException e) {
+            Log.w("Growing " + FILE, e);
+        } finally {
+            synchronized (this) {
+                growing = false;
+            }
+        }
+    }
+
+    /*
+     * Has to be preceded by startRebuild(). Only the replay of the journal and the swap itself are done
+     * while holding the lock. A zero capacity means twice the capacity of the table being copied. If too many
+     * entries have been put during the copy, the table is copied again with a larger capacity.
+     */
+    private void rebuild(int capacity, long minTimestamp) throws IOException {
+        synchronized (maintenanceLock) {
+            try {
+                while (true) {
+                    Table source;
+                    synchronized (this) {
+                        source = table;
+                    }
+                    if (capacity == 0) capacity = Math.min((source.mask + 1) * 2, MAX_CAPACITY);
+                    Copy copy = copy(source, capacity, minTimestamp);
+                    synchronized (this) {
+                        long expectedSize = copy.size + journalSize / JOURNAL_ENTRY_SIZE;
+                        if (expectedSize * 2L > capacity && capacity < MAX_CAPACITY) {
+                            capacity *= 2;
+
+                            continue;
+                        }
+
+                        replay(copy, minTimestamp);
+                        swap(copy);
+
+                        return;
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    finishRebuild();
+                }
+            }
+        }
+    }
+
+    private void replay(Copy copy, long minTimestamp) {
+        for (int i = 0; i < journalSize; i += JOURNAL_ENTRY_SIZE) {
+            if (journal[i + 2] < minTimestamp) continue;
+            if (copy.size + 1 > copy.table.mask) {
+                Log.w(FILE + " is full, " + ((journalSize - i) / JOURNAL_ENTRY_SIZE) +
+                        " verification(s) won't be saved");
+
+                return;
+            }
+
+            if (insert(copy.table, journal[i], journal[i + 1], journal[i + 2])) copy.size++;
+        }
+    }
+
+    private static class Copy {
+        final File file;
+        final Table table;
+        int size;
+
+        Copy(File file, Table table) {
+            this.file = file;
+            this.table = table;
+        }
+    }
+
+    /*
+     * Copies the live entries of the table to a temporary file. Doesn't need the lock, since an entry
+     * is written before its timestamp is published, and the entries put meanwhile are in the journal.
+     */
+    private Copy copy(Table source, int capacity, long minTimestamp) throws IOException {
+        File tmpFile = new File(FILE.getPath() + ".tmp");
+        Copy result = new Copy(tmpFile, create(tmpFile, capacity));
+        MappedByteBuffer buffer = source.buffer;
+        for (int i = 0; i <= source.mask; i++) {
+            int offset = getOffset(i);
+            long timestamp = (long) LONGS.getAcquire(buffer, offset + 16);
+            if (timestamp == 0L || timestamp < minTimestamp) continue;
+            if (result.size + 1 > result.table.mask) break; // only when shrinking below what the put()s have added
+
+            long most = (long) LONGS.get(buffer, offset);
+            if (insert(result.table, most, (long) LONGS.get(buffer, offset + 8), timestamp)) result.size++;
+        }
+        result.table.buffer.force();
+
+        return result;
+    }
+
+    /*
+     * Concurrent lookups keep using the old mapping until they see the new table, which is fine
+     * since it stays valid. Called while holding the lock.
+     */
+    private void swap(Copy copy) throws IOException {
+        Files.move(copy.file.toPath(), FILE.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        table = copy.table;
+        size = copy.size;
+    }
+
+    private void startRebuild() {
+        if (rebuilds++ == 0) startJournal();
+    }
+
+    /*
+     * If another rebuild is waiting, it will copy the current table, so only the entries put from now on
+     * have to be recorded.
+     */
+    private void finishRebuild() {
+        if (--rebuilds > 0) {
+            startJournal();
+        } else {
+            journal = null;
+        }
+    }
+
+    private void startJournal() {
+        journal = new long[JOURNAL_ENTRY_SIZE * 64];
+        journalSize = 0;
+    }
+
+    private void record(long most, long least, long timestamp) {
+        if (journalSize == journal.length) journal = Arrays.copyOf(journal, journal.length * 2);
+        journal[journalSize++] = most;
+        journal[journalSize++] = least;
+        journal[journalSize++] = timestamp;
+    }
+
+    private Table create(File file, int capacity) throws IOException {
+        MappedByteBuffer buffer = map(file, capacity, true);
+        buffer.putLong(0, MAGIC);
+        buffer.putInt(8, capacity);
+
+        return new Table(buffer, capacity);
+    }
+
+    private Table open(File file) throws IOException {
+        int capacity;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0L, HEADER_SIZE);
+            if (header.getLong(0) != MAGIC) throw new IOException(file + " is not a verification store");
+
+            capacity = header.getInt(8);
+            if (capacity < MIN_CAPACITY || capacity > MAX_CAPACITY || Integer.bitCount(capacity) != 1 ||
+                    channel.size() != getOffset(capacity)
+            ) {
+                throw new IOException(file + " is corrupted");
+            }
+        }
+        Table result = new Table(map(file, capacity, false), capacity);
+
+        size = 0;
+        for (int i = 0; i < capacity; i++) {
+            int offset = getOffset(i);
+            if ((long) LONGS.get(result.buffer, offset + 16) == 0L) continue;
+
+            long most = (long) LONGS.get(result.buffer, offset);
+            addToBloomFilter(result, most, (long) LONGS.get(result.buffer, offset + 8));
+            size++;
+        }
+
+        return result;
+    }
+
+    private static MappedByteBuffer map(File file, int capacity, boolean create) throws IOException {
+        long length = getOffset(capacity);
+        try (FileChannel channel = (create ?
+                FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE))
+        ) {
+            /*
+             * The mapping stays valid after the channel is closed.
+             */
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0L, length);
+        }
+    }
+
+    /*
+     * Returns true if a new slot has been occupied.
+     */
+    private static boolean insert(Table table, long most, long least, long timestamp) {
+        MappedByteBuffer buffer = table.buffer;
+        for (int i = hash(most, least) & table.mask; ; i = (i + 1) & table.mask) {
+            int offset = getOffset(i);
+            long current = (long) LONGS.get(buffer, offset + 16);
+            if (current == 0L) {
+                addToBloomFilter(table, most, least);
+                LONGS.set(buffer, offset, most);
+                LONGS.set(buffer, offset + 8, least);
+                LONGS.setRelease(buffer, offset + 16, timestamp);
+
+                return true;
+            }
+            if ((long) LONGS.get(buffer, offset) == most && (long) LONGS.get(buffer, offset + 8) == least) {
+                LONGS.setRelease(buffer, offset + 16, timestamp);
+
+                return false;
+            }
+        }
+    }
+
+    /*
+     * Bits are derived from two halves of a single 64-bit hash (the Kirsch-Mitzenmacher technique).
+     */
+    private static void addToBloomFilter(Table table, long most, long least) {
+        long hash = mix(most, least);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        AtomicLongArray bloomFilter = table.bloomFilter;
+        for (int i = 0; i < table.bloomFilterHashes; i++) {
+            int bit = (h1 + i * h2) & table.bloomFilterMask;
+            int word = bit >>> 6;
+            bloomFilter.setRelease(word, bloomFilter.getPlain(word) | (1L << bit));
+        }
+    }
+
+    private static boolean mightContain(Table table, long most, long least) {
+        long hash = mix(most, least);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        AtomicLongArray bloomFilter = table.bloomFilter;
+        for (int i = 0; i < table.bloomFilterHashes; i++) {
+            int bit = (h1 + i * h2) & table.bloomFilterMask;
+            if ((bloomFilter.getAcquire(bit >>> 6) & (1L << bit)) == 0L) return false;
+        }
+
+        return true;
+    }
+
+    private static int getOffset(int slot) {
+        return HEADER_SIZE + slot * DB.ENTRY_SIZE;
+    }
+
+    private static int hash(long most, long least) {
+        return (int) (mix(most, least) >>> 32);
+    }
+
+    private static long mix(long most, long least) {
+        long h = most ^ (least * 0x9E3779B97F4A7C15L);
+        h ^= (h >>> 33);
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= (h >>> 33);
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= (h >>> 33);
+
+        return h;
+    }
+}
@@ -0,0 +1,287 @@
+package ru.deewend.cheshka.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NioTransport implements Transport {
+    private final EventLoop eventLoop;
+    private final SocketChannel channel;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private ClientHandler handler;
+    private SelectionKey key;
+    /*
+     * The beginning of a packet which has not been fully received yet. Most of the time it is null, so idle
+     * connections don't hold any buffers. Its capacity is doubled when needed, so a packet arriving in many
+     * small pieces is still copied only a few times.
+     */
+    private ByteBuffer inbound;
+    /*
+     * How many bytes inbound should contain before it's worth trying to decode the packet again.
+     */
+    private int required;
+    /*
+     * A packet which might block (see ClientHandler#mightBlock) is handled by a separate thread rather than
+     * by the EventLoop. Reading is paused meanwhile, so the packets of a client are still handled one at a time
+     * and in order, and inbound is only touched by that thread until it sets this back to false.
+     */
+    private volatile boolean dispatching;
+    private Packet dispatchedPacket; // decoded by handleReceived(), to be passed to the thread by onReadable()
+    private int pendingLength; // how many received bytes follow the packet which is being handled
+    private ArrayDeque<ByteBuffer> outbound;
+    private boolean closeRequested;
+    private long lastReadTimestamp = System.currentTimeMillis();
+
+    public NioTransport(EventLoop eventLoop, SocketChannel channel) {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+    }
+
+    void register(Selector selector, ClientHandler handler) throws IOException {
+        this.handler = handler;
+
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    void onReadable(ByteBuffer buffer, PacketDecoder decoder) throws IOException {
+        if (dispatching) return;
+
+        buffer.clear();
+        int read = channel.read(buffer);
+        if (read < 0) throw new EOFException();
+        if (read == 0) return;
+
+        lastReadTimestamp = System.currentTimeMillis();
+
+        if (inbound == null) {
+            int consumed = handleReceived(buffer.array(), 0, read, decoder);
+            if (consumed >= 0 && consumed < read) {
+                int remaining = read - consumed;
+                inbound = ByteBuffer.allocate(Math.max(remaining, required));
+                inbound.put(buffer.array(), consumed, remaining);
+            }
+        } else {
+            append(buffer.array(), read);
+            if (inbound.position() < required) return;
+
+            handleInbound(decoder);
+        }
+        if (dispatchedPacket != null) dispatch();
+    }
+
+    /*
+     * Returns false if the connection is being closed.
+     */
+    private boolean handleInbound(PacketDecoder decoder) throws IOException {
+        inbound.flip();
+        int consumed = handleReceived(inbound.array(), 0, inbound.limit(), decoder);
+        if (consumed < 0 || consumed == inbound.limit()) {
+            inbound = null;
+        } else {
+            inbound.position(consumed);
+            inbound.compact();
+        }
+
+        return consumed >= 0;
+    }
+
+    private void dispatch() {
+        Packet packet = dispatchedPacket;
+        dispatchedPacket = null;
+        dispatching = true;
+        key.interestOpsAnd(~SelectionKey.OP_READ);
+
+        Helper.newThread("Packet Handler", () -> {
+            try {
+                if (!handler.handlePacket(packet)) {
+                    handler.close(); // reading stays paused, the channel will be closed once the packets are sent
+
+                    return;
+                }
+                /*
+                 * The packets received right after this one, e.g. a pipelined ClientIdentification.
+                 */
+                if (inbound != null && !handleInbound(new PacketDecoder())) return;
+
+                dispatching = false;
+                key.interestOpsOr(SelectionKey.OP_READ);
+                key.selector().wakeup();
+            } catch (CancelledKeyException ignored) {
+                // closed concurrently
+            } catch (Throwable t) {
+                closeNow(t);
+            }
+        }, false);
+    }
+
+    /*
+     * Returns how many bytes have been consumed, or -1 if the connection is being closed.
+     */
+    private int handleReceived(byte[] data, int offset, int length, PacketDecoder decoder) throws IOException {
+        int start = offset;
+        while (length > 0 && !closed.get()) {
+            Packet packet;
+            if (handler.isFramed()) {
+                if (length < PacketDecoder.FRAME_HEADER_SIZE) {
+                    required = PacketDecoder.FRAME_HEADER_SIZE;
+
+                    break;
+                }
+                int frameLength = PacketDecoder.readFrameLength(data, offset);
+                PacketDecoder.checkFrameLength(frameLength); // before waiting for the rest of the frame
+                if (length < PacketDecoder.FRAME_HEADER_SIZE + frameLength) {
+                    required = PacketDecoder.FRAME_HEADER_SIZE + frameLength;
+
+                    break;
+                }
+
+                offset += PacketDecoder.FRAME_HEADER_SIZE;
+                length -= PacketDecoder.FRAME_HEADER_SIZE;
+                packet = decoder.decodeFrame(
+                        data, offset, frameLength, handler.packetPool, handler.getInboundSignatureScheme());
+            } else {
+                packet = decoder.decodeUnframed(data, offset, length, handler.packetPool);
+                if (packet == null) {
+                    required = decoder.getRequired();
+
+                    break;
+                }
+            }
+            int consumed = decoder.getConsumed();
+            offset += consumed;
+            length -= consumed;
+            pendingLength = length;
+
+            if (eventLoop.inEventLoop() && handler.mightBlock(packet)) {
+                dispatchedPacket = packet;
+
+                break;
+            }
+            if (!handler.handlePacket(packet)) {
+                /*
+                 * Stop reading, the channel will be closed once the queued packets are sent.
+                 */
+                key.interestOpsAnd(~SelectionKey.OP_READ);
+                handler.close();
+
+                return -1;
+            }
+        }
+        if (Math.max(length, required) > PacketDecoder.FRAME_HEADER_SIZE + CheshkaServer.MAX_INBOUND_PACKET_SIZE) {
+            throw new IOException("Serverbound packet is too large");
+        }
+
+        return offset - start;
+    }
+
+    private void append(byte[] data, int length) {
+        if (inbound.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(inbound.capacity() * 2, inbound.position() + length));
+            inbound.flip();
+            grown.put(inbound);
+
+            inbound = grown;
+        }
+        inbound.put(data, 0, length);
+    }
+
+    void onWritable() throws IOException {
+        boolean closeNow;
+        synchronized (this) {
+            flush0();
+
+            closeNow = (closeRequested && outbound.isEmpty());
+        }
+        if (closeNow) closeNow(null);
+    }
+
+    void checkIdle(long currentTime) {
+        if (currentTime - lastReadTimestamp >= CheshkaServer.MAX_IDLE_TIME_MILLIS) {
+            closeNow(new SocketTimeoutException("Read timed out"));
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] data) throws IOException {
+        if (closeRequested || closed.get()) throw new IOException("The connection is closed");
+
+        if (outbound == null) outbound = new ArrayDeque<>();
+        outbound.add(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (outbound == null || outbound.isEmpty()) return;
+
+        flush0();
+    }
+
+    private void flush0() throws IOException {
+        if (!outbound.isEmpty()) {
+            channel.write(outbound.toArray(new ByteBuffer[0]));
+
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) outbound.remove();
+        }
+        try {
+            if (outbound.isEmpty()) {
+                key.interestOpsAnd(~SelectionKey.OP_WRITE);
+            } else if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+                if (!eventLoop.inEventLoop()) key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) { // closeNow() doesn't hold the monitor
+            throw new IOException("The connection is closed", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (outbound != null && !outbound.isEmpty()) {
+                /*
+                 * The channel will be closed as soon as the remaining data is written.
+                 */
+                closeRequested = true;
+
+                return;
+            }
+        }
+
+        closeNow(null);
+    }
+
+    /*
+     * Should not be called while holding the monitor of this object, ClientHandler#onDisconnect
+     * acquires locks which might be held by someone else who is waiting for this transport.
+     */
+    void closeNow(Throwable cause) {
+        if (!closed.compareAndSet(false, true)) return;
+
+        if (key != null) key.cancel();
+        Helper.close(channel);
+
+        if (handler != null) handler.onDisconnect(cause);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public boolean hasPendingInput() {
+        return pendingLength > 0;
+    }
+
+    @Override
+    public String getHostAddress() {
+        return channel.socket().getInetAddress().getHostAddress();
+    }
+}
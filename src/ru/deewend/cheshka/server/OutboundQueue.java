@@ -0,0 +1,144 @@
+package ru.deewend.cheshka.server;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Packets are written in the order they were enqueued. At most one thread drains the
+ * queue at a time, and the transport is flushed once per drain rather than per packet.
+ */
+public class OutboundQueue {
+    private static final Object CLOSE = new Object();
+
+    private final Transport transport;
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean closed;
+    private volatile boolean corked;
+    private volatile byte signatureScheme = Helper.SIGNATURE_SCHEME_CRC32;
+
+    public OutboundQueue(Transport transport) {
+        this.transport = transport;
+    }
+
+    /*
+     * Returns the depth of the queue after adding the packet.
+     */
+    public int enqueue(Packet packet) {
+        return enqueue0(packet);
+    }
+
+    /*
+     * The array is never modified, so the same one can be shared by many queues.
+     */
+    public int enqueue(byte[] serializedPacket) {
+        return enqueue0(serializedPacket);
+    }
+
+    /*
+     * Affects packets which haven't been serialized yet, including the already enqueued ones.
+     */
+    public void setSignatureScheme(byte signatureScheme) {
+        this.signatureScheme = signatureScheme;
+    }
+
+    public byte getSignatureScheme() {
+        return signatureScheme;
+    }
+
+    public void enqueueClose() {
+        corked = false;
+
+        enqueue0(CLOSE);
+    }
+
+    private int enqueue0(Object item) {
+        if (closed) return 0;
+
+        queue.add(item);
+        int result = depth.incrementAndGet();
+        if (!corked && !TickBatch.defer(this)) drainLater();
+
+        return result;
+    }
+
+    /*
+     * Packets enqueued after this call are held back until uncork() (or enqueueClose()) is called.
+     */
+    public void cork() {
+        corked = true;
+    }
+
+    public void uncork() {
+        if (!corked) return;
+
+        corked = false;
+        /*
+         * Items which were added before the flag was reset haven't triggered a drain.
+         */
+        if (!queue.isEmpty() && !TickBatch.defer(this)) drainLater();
+    }
+
+    void drainLater() {
+        if (draining.compareAndSet(false, true)) {
+            Helper.newThread("Packet Writer", this::drain, false);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            try {
+                boolean wrote = false;
+                Object item;
+                while ((item = queue.poll()) != null) {
+                    depth.decrementAndGet();
+                    if (item == CLOSE) {
+                        if (wrote) transport.flush();
+                        closeNow();
+
+                        return;
+                    }
+
+                    if (item instanceof byte[] serializedPacket) {
+                        transport.write(serializedPacket);
+                    } else {
+                        transport.write(((Packet) item).serialize(signatureScheme));
+                    }
+                    wrote = true;
+                }
+                if (wrote) transport.flush();
+            } catch (IOException e) {
+                closeNow();
+
+                return;
+            } catch (ReflectiveOperationException e) {
+                closeNow();
+
+                throw new RuntimeException("Sending a packet", e);
+            }
+
+            draining.set(false);
+            /*
+             * Someone might have added an item after the queue was found
+             * empty, but before the draining flag was reset.
+             */
+            if (queue.isEmpty() || !draining.compareAndSet(false, true)) return;
+        }
+    }
+
+    private void closeNow() {
+        closed = true;
+        queue.clear();
+        depth.set(0);
+
+        transport.close();
+    }
+
+    public int getDepth() {
+        return depth.get();
+    }
+}
@@ -9,8 +9,17 @@ import java.io.*;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.UUID;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
 
 public abstract class Packet {
+    /*
+     * The codec resolves the packet structure once per class. The reflective implementation is kept
+     * as a fallback in case a packet turns out to be serialized differently by these two.
+     */
+    public static final boolean USE_REFLECTIVE_CODEC =
+            Boolean.parseBoolean(Helper.getProperty("useReflectivePacketCodec", "false"));
+
     @SuppressWarnings("rawtypes")
     private static final Class[] serverboundPIDMappings;
 
@@ -44,21 +53,52 @@ public abstract class Packet {
         }
         OnlyWhen annotation = field.getAnnotation(OnlyWhen.class);
         if (annotation != null) {
-            String fieldValue =
-                    String.valueOf(cachedClass.getField(annotation.field()).get(packet));
+            Object value = cachedClass.getField(annotation.field()).get(packet);
+            if (annotation.is().isEmpty()) return ((Number) value).longValue() < annotation.atLeast();
 
-            return !fieldValue.equals(annotation.is());
+            return !String.valueOf(value).equals(annotation.is());
         }
 
         return false;
     }
 
-    public static Packet deserialize(DataInputStream stream) throws IOException, ReflectiveOperationException {
+    public static Packet deserialize(
+            DataInputStream stream, PacketPool pool
+    ) throws IOException, ReflectiveOperationException {
+        return deserialize(stream, pool, Helper.SIGNATURE_SCHEME_CRC32);
+    }
+
+    /*
+     * In case of Helper.SIGNATURE_SCHEME_PACKET_CRC32C the packet signature is expected to be verified by the caller.
+     */
+    public static Packet deserialize(
+            DataInputStream stream, PacketPool pool, byte signatureScheme
+    ) throws IOException, ReflectiveOperationException {
         int pid = stream.readUnsignedByte();
         Class<?> clazz;
         if (pid >= serverboundPIDMappings.length || (clazz = serverboundPIDMappings[pid]) == null) {
             throw new IOException("Unknown serverbound packet id: " + pid);
         }
+        if (USE_REFLECTIVE_CODEC) return deserializeReflectively(stream, clazz, signatureScheme);
+
+        PacketCodec codec = PacketCodec.of(clazz);
+        Packet packet = (pool != null ? pool.acquire(clazz) : null);
+        if (packet == null) return codec.read(stream, signatureScheme);
+
+        try {
+            codec.read(stream, packet, signatureScheme);
+        } catch (IOException e) {
+            pool.release(packet);
+
+            throw e;
+        }
+
+        return packet;
+    }
+
+    static Packet deserializeReflectively(
+            DataInputStream stream, Class<?> clazz, byte signatureScheme
+    ) throws IOException, ReflectiveOperationException {
         Packet packet = (Packet) clazz.getDeclaredConstructor().newInstance();
 
         for (Field field : Helper.fixOrder(clazz.getFields())) {
@@ -79,7 +119,7 @@ public abstract class Packet {
 
                 field.set(packet, new UUID(most, least));
             } else if (type == String.class) {
-                field.set(packet, Helper.readString(stream));
+                field.set(packet, Helper.readString(stream, signatureScheme));
             } else {
                 throw new ReflectiveOperationException("Unsupported packet field type: " + type);
             }
@@ -91,48 +131,26 @@ public abstract class Packet {
     public abstract int getId();
 
     public final byte[] serialize() throws IOException, ReflectiveOperationException {
+        return serialize(Helper.SIGNATURE_SCHEME_CRC32);
+    }
+
+    public final byte[] serialize(byte signatureScheme) throws IOException, ReflectiveOperationException {
         byte[] result;
         try (ByteArrayOutputStream stream0 = new ByteArrayOutputStream()) {
             // closing ByteArrayOutputStream should not be mandatory though
 
-            DataOutputStream stream = new DataOutputStream(stream0);
-            int packetId = getId();
-            stream.writeByte(packetId);
-
-            Class<?> clazz = getClass();
-            for (Field field : Helper.fixOrder(clazz.getFields())) {
-                if (shouldContinue(field, this, clazz)) continue;
-
-                Class<?> type = field.getType();
-                if (type == byte.class) {
-                    stream.writeByte(field.getByte(this));
-                } else if (type == boolean.class) {
-                    stream.writeBoolean(field.getBoolean(this));
-                } else if (type == int.class) {
-                    stream.writeInt(field.getInt(this));
-                } else if (type == long.class) {
-                    stream.writeLong(field.getLong(this));
-                } else if (type == UUID.class) {
-                    UUID uuid = (UUID) field.get(this);
-                    if (uuid == null) uuid = Helper.NULL_UUID_OBJ;
-
-                    stream.writeLong(uuid.getMostSignificantBits());
-                    stream.writeLong(uuid.getLeastSignificantBits());
-                } else if (type == String.class) {
-                    String v = (String) field.get(this);
-                    if (v == null) v = Helper.DEFAULT_STRING_VALUE;
-
-                    Helper.writeString(stream, v);
-                } else if (type == BufferedImage.class) {
-                    BufferedImage image = (BufferedImage) field.get(this);
-                    if (image == null) {
-                        throw new NullPointerException("Null BufferedImage in a clientbound packet, id is " + packetId);
-                    }
-
-                    Helper.writeBufferedImage(stream, image);
-                } else {
-                    throw new ReflectiveOperationException("Unsupported packet field type: " + type);
-                }
+            boolean packetSignature = (signatureScheme == Helper.SIGNATURE_SCHEME_PACKET_CRC32C);
+            CheckedOutputStream checked = (packetSignature ? new CheckedOutputStream(stream0, new CRC32C()) : null);
+            DataOutputStream stream = new DataOutputStream(packetSignature ? checked : stream0);
+            if (USE_REFLECTIVE_CODEC) {
+                serializeReflectively(stream, signatureScheme);
+            } else {
+                PacketCodec.of(getClass()).write(this, stream, signatureScheme);
+            }
+            if (packetSignature) {
+                int signature = (int) checked.getChecksum().getValue() ^ Helper.SIGNATURE_MAGIC;
+
+                new DataOutputStream(stream0).writeInt(signature);
             }
 
             result = stream0.toByteArray();
@@ -141,8 +159,53 @@ public abstract class Packet {
         return result;
     }
 
-    public final void send(OutputStream stream) throws IOException, ReflectiveOperationException {
-        stream.write(serialize());
-        stream.flush();
+    void serializeReflectively(
+            DataOutputStream stream, byte signatureScheme
+    ) throws IOException, ReflectiveOperationException {
+        int packetId = getId();
+        stream.writeByte(packetId);
+
+        Class<?> clazz = getClass();
+        for (Field field : Helper.fixOrder(clazz.getFields())) {
+            if (shouldContinue(field, this, clazz)) continue;
+
+            Class<?> type = field.getType();
+            if (type == byte.class) {
+                stream.writeByte(field.getByte(this));
+            } else if (type == boolean.class) {
+                stream.writeBoolean(field.getBoolean(this));
+            } else if (type == int.class) {
+                stream.writeInt(field.getInt(this));
+            } else if (type == long.class) {
+                stream.writeLong(field.getLong(this));
+            } else if (type == UUID.class) {
+                UUID uuid = (UUID) field.get(this);
+                if (uuid == null) uuid = Helper.NULL_UUID_OBJ;
+
+                stream.writeLong(uuid.getMostSignificantBits());
+                stream.writeLong(uuid.getLeastSignificantBits());
+            } else if (type == String.class) {
+                String v = (String) field.get(this);
+                if (v == null) v = Helper.DEFAULT_STRING_VALUE;
+
+                Helper.writeString(stream, v, signatureScheme);
+            } else if (type == BufferedImage.class) {
+                BufferedImage image = (BufferedImage) field.get(this);
+                if (image == null) {
+                    throw new NullPointerException("Null BufferedImage in a clientbound packet, id is " + packetId);
+                }
+
+                Helper.writeBufferedImage(stream, image, signatureScheme);
+            } else if (type == byte[].class) {
+                byte[] contents = (byte[]) field.get(this);
+                if (contents == null) {
+                    throw new NullPointerException("Null byte array in a clientbound packet, id is " + packetId);
+                }
+
+                Helper.writeByteArray(stream, contents, signatureScheme);
+            } else {
+                throw new ReflectiveOperationException("Unsupported packet field type: " + type);
+            }
+        }
     }
 }
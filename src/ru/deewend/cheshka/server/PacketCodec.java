@@ -0,0 +1,236 @@
+package ru.deewend.cheshka.server;
+
+import ru.deewend.cheshka.server.annotation.OnlyWhen;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * Everything Packet#serialize and Packet#deserialize used to look up via reflection on each
+ * call (the field list, @Order sorting, @OnlyWhen conditions) is resolved once per packet class.
+ */
+public class PacketCodec {
+    private static final byte TYPE_BYTE = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_UUID = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_BUFFERED_IMAGE = 6;
+    private static final byte TYPE_BYTE_ARRAY = 7;
+    private static final byte TYPE_OTHER = 8; // only used for @OnlyWhen conditions
+
+    private static final ClassValue<PacketCodec> CODECS = new ClassValue<>() {
+        @Override
+        protected PacketCodec computeValue(Class<?> type) {
+            try {
+                return new PacketCodec(type);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Failed to create a codec for " + type.getName(), e);
+            }
+        }
+    };
+
+    private final Class<?> clazz;
+    private final Constructor<?> constructor;
+    private final String[] names;
+    private final VarHandle[] handles;
+    private final byte[] types;
+    /*
+     * conditionHandles[i] is null if the i-th field has no @OnlyWhen annotation.
+     */
+    private final VarHandle[] conditionHandles;
+    private final byte[] conditionTypes;
+    private final long[] conditionValues;
+    private final boolean[] conditionMinimums; // whether conditionValues[i] is a minimum rather than the exact value
+    private final String[] conditionStrings;
+
+    private PacketCodec(Class<?> clazz) throws ReflectiveOperationException {
+        this.clazz = clazz;
+
+        Constructor<?> constructor;
+        try {
+            constructor = clazz.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            constructor = null; // might be fine for clientbound-only packets
+        }
+        this.constructor = constructor;
+
+        List<Field> fields = Helper.fixOrder(clazz.getFields());
+        fields.removeIf(field -> Modifier.isStatic(field.getModifiers()));
+        int count = fields.size();
+        names = new String[count];
+        handles = new VarHandle[count];
+        types = new byte[count];
+        conditionHandles = new VarHandle[count];
+        conditionTypes = new byte[count];
+        conditionValues = new long[count];
+        conditionMinimums = new boolean[count];
+        conditionStrings = new String[count];
+
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        for (int i = 0; i < count; i++) {
+            Field field = fields.get(i);
+            names[i] = field.getName();
+            handles[i] = lookup.unreflectVarHandle(field);
+            types[i] = getType(field.getType());
+            if (types[i] == TYPE_OTHER) {
+                throw new ReflectiveOperationException("Unsupported packet field type: " + field.getType());
+            }
+
+            OnlyWhen annotation = field.getAnnotation(OnlyWhen.class);
+            if (annotation == null) continue;
+
+            Field conditionField = clazz.getField(annotation.field());
+            conditionHandles[i] = lookup.unreflectVarHandle(conditionField);
+            conditionTypes[i] = getType(conditionField.getType());
+            conditionStrings[i] = annotation.is();
+            if (annotation.is().isEmpty()) {
+                if (conditionTypes[i] != TYPE_BYTE && conditionTypes[i] != TYPE_INT && conditionTypes[i] != TYPE_LONG) {
+                    throw new ReflectiveOperationException("@OnlyWhen(atLeast) requires a numeric field, got " +
+                            conditionField.getType() + " in " + clazz.getName());
+                }
+                conditionMinimums[i] = true;
+                conditionValues[i] = annotation.atLeast();
+
+                continue;
+            }
+            conditionValues[i] = switch (conditionTypes[i]) {
+                case TYPE_BOOLEAN -> (Boolean.parseBoolean(annotation.is()) ? 1L : 0L);
+                case TYPE_BYTE, TYPE_INT, TYPE_LONG -> Long.parseLong(annotation.is());
+                default -> 0L; // will be compared as a string
+            };
+        }
+    }
+
+    public static PacketCodec of(Class<?> clazz) {
+        return CODECS.get(clazz);
+    }
+
+    private static byte getType(Class<?> type) {
+        if (type == byte.class) return TYPE_BYTE;
+        if (type == boolean.class) return TYPE_BOOLEAN;
+        if (type == int.class) return TYPE_INT;
+        if (type == long.class) return TYPE_LONG;
+        if (type == UUID.class) return TYPE_UUID;
+        if (type == String.class) return TYPE_STRING;
+        if (type == BufferedImage.class) return TYPE_BUFFERED_IMAGE;
+        if (type == byte[].class) return TYPE_BYTE_ARRAY;
+
+        return TYPE_OTHER;
+    }
+
+    private boolean shouldSkip(int idx, Packet packet) {
+        VarHandle handle = conditionHandles[idx];
+        if (handle == null) return false;
+
+        long expected = conditionValues[idx];
+        long value;
+        switch (conditionTypes[idx]) {
+            case TYPE_BOOLEAN -> value = ((boolean) handle.get(packet) ? 1L : 0L);
+            case TYPE_BYTE -> value = (byte) handle.get(packet);
+            case TYPE_INT -> value = (int) handle.get(packet);
+            case TYPE_LONG -> value = (long) handle.get(packet);
+            default -> {
+                return !String.valueOf((Object) handle.get(packet)).equals(conditionStrings[idx]);
+            }
+        }
+
+        return (conditionMinimums[idx] ? value < expected : value != expected);
+    }
+
+    public Packet read(
+            DataInputStream stream, byte signatureScheme
+    ) throws IOException, ReflectiveOperationException {
+        if (constructor == null) {
+            throw new ReflectiveOperationException("No default constructor in " + clazz.getName());
+        }
+        Packet packet = (Packet) constructor.newInstance();
+        read(stream, packet, signatureScheme);
+
+        return packet;
+    }
+
+    /*
+     * Overwrites all the fields which are present in the stream, the remaining ones are left as is.
+     */
+    public void read(
+            DataInputStream stream, Packet packet, byte signatureScheme
+    ) throws IOException, ReflectiveOperationException {
+        for (int i = 0; i < handles.length; i++) {
+            if (shouldSkip(i, packet)) continue;
+
+            VarHandle handle = handles[i];
+            switch (types[i]) {
+                case TYPE_BYTE -> handle.set(packet, stream.readByte());
+                case TYPE_BOOLEAN -> handle.set(packet, stream.readBoolean());
+                case TYPE_INT -> handle.set(packet, stream.readInt());
+                case TYPE_LONG -> handle.set(packet, stream.readLong());
+                case TYPE_UUID -> {
+                    long most = stream.readLong();
+                    long least = stream.readLong();
+
+                    handle.set(packet, new UUID(most, least));
+                }
+                case TYPE_STRING -> handle.set(packet, Helper.readString(stream, signatureScheme));
+                default -> throw new ReflectiveOperationException("Unsupported serverbound " +
+                        "packet field type, field name is " + names[i]);
+            }
+        }
+    }
+
+    public void write(Packet packet, DataOutputStream stream, byte signatureScheme) throws IOException {
+        int packetId = packet.getId();
+        stream.writeByte(packetId);
+
+        for (int i = 0; i < handles.length; i++) {
+            if (shouldSkip(i, packet)) continue;
+
+            VarHandle handle = handles[i];
+            switch (types[i]) {
+                case TYPE_BYTE -> stream.writeByte((byte) handle.get(packet));
+                case TYPE_BOOLEAN -> stream.writeBoolean((boolean) handle.get(packet));
+                case TYPE_INT -> stream.writeInt((int) handle.get(packet));
+                case TYPE_LONG -> stream.writeLong((long) handle.get(packet));
+                case TYPE_UUID -> {
+                    UUID uuid = (UUID) handle.get(packet);
+                    if (uuid == null) uuid = Helper.NULL_UUID_OBJ;
+
+                    stream.writeLong(uuid.getMostSignificantBits());
+                    stream.writeLong(uuid.getLeastSignificantBits());
+                }
+                case TYPE_STRING -> {
+                    String v = (String) handle.get(packet);
+                    if (v == null) v = Helper.DEFAULT_STRING_VALUE;
+
+                    Helper.writeString(stream, v, signatureScheme);
+                }
+                case TYPE_BUFFERED_IMAGE -> {
+                    BufferedImage image = (BufferedImage) handle.get(packet);
+                    if (image == null) {
+                        throw new NullPointerException("Null BufferedImage in a clientbound packet, id is " + packetId);
+                    }
+
+                    Helper.writeBufferedImage(stream, image, signatureScheme);
+                }
+                case TYPE_BYTE_ARRAY -> {
+                    byte[] contents = (byte[]) handle.get(packet);
+                    if (contents == null) {
+                        throw new NullPointerException("Null byte array in a clientbound packet, id is " + packetId);
+                    }
+
+                    Helper.writeByteArray(stream, contents, signatureScheme);
+                }
+            }
+        }
+    }
+}
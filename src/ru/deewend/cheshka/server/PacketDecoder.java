@@ -0,0 +1,134 @@
+package ru.deewend.cheshka.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/*
+ * Decodes serverbound packets from byte arrays, reusing the same streams for every packet.
+ */
+public class PacketDecoder {
+    public static final int FRAME_HEADER_SIZE = 4;
+
+    /*
+     * Also remembers how far the data would have to extend for the reads which have hit its end to succeed.
+     */
+    private static class ReusableInputStream extends ByteArrayInputStream {
+        int required;
+
+        ReusableInputStream() {
+            super(new byte[0]);
+        }
+
+        void reset(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.count = offset + length;
+            this.mark = offset;
+            this.required = offset;
+        }
+
+        @Override
+        public int read() {
+            if (pos >= count) required = Math.max(required, pos + 1);
+
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (count - pos < len) required = Math.max(required, pos + len);
+
+            return super.read(b, off, len);
+        }
+    }
+
+    private final ReusableInputStream stream = new ReusableInputStream();
+    private final DataInputStream dataStream = new DataInputStream(stream);
+    private int consumed;
+    private int required;
+
+    /*
+     * Used by protocol versions which don't have length-prefixed packets. Returns null if the region
+     * contains only the beginning of a packet (getRequired() then tells how long the region has to be
+     * for decoding to get further), otherwise getConsumed() tells how many bytes it took.
+     */
+    public Packet decodeUnframed(byte[] buf, int offset, int length, PacketPool pool) throws IOException {
+        stream.reset(buf, offset, length);
+        Packet packet;
+        try {
+            packet = Packet.deserialize(dataStream, pool);
+        } catch (EOFException incomplete) {
+            required = stream.required - offset;
+
+            return null;
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Receiving a packet", e);
+        }
+        consumed = length - stream.available();
+
+        return packet;
+    }
+
+    /*
+     * The packet (followed by its signature in case of Helper.SIGNATURE_SCHEME_PACKET_CRC32C)
+     * is expected to occupy the whole region.
+     */
+    public Packet decodeFrame(
+            byte[] buf, int offset, int length, PacketPool pool, byte signatureScheme
+    ) throws IOException {
+        consumed = length;
+        if (signatureScheme == Helper.SIGNATURE_SCHEME_PACKET_CRC32C) {
+            length -= Helper.PACKET_SIGNATURE_SIZE;
+            if (length <= 0) throw new IOException("Truncated frame");
+
+            int signature = readInt(buf, offset + length);
+            if (signature != (Helper.calculateCRC32C(buf, offset, length) ^ Helper.SIGNATURE_MAGIC)) {
+                throw new IOException("Bad packet signature");
+            }
+        }
+        stream.reset(buf, offset, length);
+        Packet packet;
+        try {
+            packet = Packet.deserialize(dataStream, pool, signatureScheme);
+        } catch (EOFException e) {
+            throw new IOException("Truncated frame", e);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Receiving a packet", e);
+        }
+        if (stream.available() != 0) {
+            if (pool != null) pool.release(packet);
+
+            throw new IOException("Found " + stream.available() +
+                    " unexpected trailing byte(s) in a frame of " + packet.getClass().getSimpleName());
+        }
+
+        return packet;
+    }
+
+    public int getConsumed() {
+        return consumed;
+    }
+
+    public int getRequired() {
+        return required;
+    }
+
+    public static void checkFrameLength(int length) throws IOException {
+        if (length <= 0 || length > CheshkaServer.MAX_INBOUND_PACKET_SIZE) {
+            throw new IOException("Bad frame length: " + length);
+        }
+    }
+
+    public static int readFrameLength(byte[] buf, int offset) {
+        return readInt(buf, offset);
+    }
+
+    private static int readInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 24) |
+                ((buf[offset + 1] & 0xFF) << 16) |
+                ((buf[offset + 2] & 0xFF) << 8) |
+                (buf[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,46 @@
+package ru.deewend.cheshka.server;
+
+import ru.deewend.cheshka.server.packet.MakeMove;
+import ru.deewend.cheshka.server.packet.Resign;
+import ru.deewend.cheshka.server.packet.RollDice;
+
+/*
+ * Provides instances for the serverbound packets received during a game, so decoding them allocates nothing.
+ * RollDice and Resign have no fields, thus a single instance of each is shared by everyone. MakeMove
+ * instances are owned by a connection and should be released once the game room has processed them.
+ */
+public class PacketPool {
+    private static final RollDice ROLL_DICE = new RollDice();
+    private static final Resign RESIGN = new Resign();
+
+    private MakeMove[] makeMoves; // allocated when needed, most of the connections are idle in the lobby
+    private int size;
+
+    /*
+     * Returns null if instances of the specified class are not pooled.
+     */
+    public synchronized Packet acquire(Class<?> clazz) {
+        if (clazz == RollDice.class) return ROLL_DICE;
+        if (clazz == Resign.class) return RESIGN;
+        if (clazz != MakeMove.class) return null;
+
+        if (size == 0) return new MakeMove();
+        MakeMove result = makeMoves[--size];
+        makeMoves[size] = null;
+
+        return result;
+    }
+
+    /*
+     * The packet should not be used by anyone after calling this method: it has to be taken out of
+     * ClientHandler.gameRoomPacketQueue beforehand and never put back, and nothing derived from it may keep
+     * a reference to it. In particular, Board.makeMove() always returns a new MakeMove rather than the one
+     * it was given, since the result is serialized later by another thread (see PacketPoolTest).
+     */
+    public synchronized void release(Packet packet) {
+        if (!(packet instanceof MakeMove makeMove)) return;
+
+        if (makeMoves == null) makeMoves = new MakeMove[ClientHandler.MAX_PACKET_COUNT_IN_QUEUE];
+        if (size < makeMoves.length) makeMoves[size++] = makeMove;
+    }
+}
@@ -0,0 +1,195 @@
+package ru.deewend.cheshka.server;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Encodes images having at most 256 distinct colours (such as captchas, which are mostly black text on
+ * white background) as palette-based PNGs, using the smallest possible bit depth. Other images are
+ * encoded by ImageIO. Buffers and the Deflater are reused, so an instance should not be shared between threads.
+ */
+public class PngEncoder implements AutoCloseable {
+    public static final int MAX_PALETTE_SIZE = 256;
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte COLOR_TYPE_INDEXED = 3;
+    private static final int PALETTE_TABLE_SIZE = 1024; // a power of two, well above MAX_PALETTE_SIZE
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final CRC32 crc32 = new CRC32();
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(Helper.MAX_FIELD_SIZE / 4);
+    private final int[] palette = new int[MAX_PALETTE_SIZE];
+    /*
+     * An open addressing table mapping ARGB colours to their palette indices + 1, zero means a free slot.
+     */
+    private final int[] tableKeys = new int[PALETTE_TABLE_SIZE];
+    private final short[] tableValues = new short[PALETTE_TABLE_SIZE];
+    private final byte[] chunkHeader = new byte[8];
+    private int[] pixels = new int[0];
+    private byte[] indices = new byte[0];
+    private byte[] raw = new byte[0];
+    private byte[] compressed = new byte[0];
+    private int paletteSize;
+
+    public byte[] encode(BufferedImage image) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int pixelCount = width * height;
+        if (pixels.length < pixelCount) {
+            pixels = new int[pixelCount];
+            indices = new byte[pixelCount];
+        }
+        image.getRGB(0, 0, width, height, pixels, 0, width);
+
+        if (!buildPalette(pixelCount)) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(Helper.MAX_FIELD_SIZE / 2);
+            ImageIO.write(image, "png", stream);
+
+            return stream.toByteArray();
+        }
+        int bitDepth = (paletteSize <= 2 ? 1 : paletteSize <= 4 ? 2 : paletteSize <= 16 ? 4 : 8);
+        int rawLength = packScanlines(width, height, bitDepth);
+        int compressedLength = deflate(rawLength);
+
+        output.reset();
+        output.write(SIGNATURE);
+        writeHeader(width, height, bitDepth);
+        writePalette();
+        writeChunk("IDAT", compressed, compressedLength);
+        writeChunk("IEND", compressed, 0);
+
+        return output.toByteArray();
+    }
+
+    /*
+     * Returns false if the image has too many colours.
+     */
+    private boolean buildPalette(int pixelCount) {
+        Arrays.fill(tableValues, (short) 0);
+        paletteSize = 0;
+
+        int mask = PALETTE_TABLE_SIZE - 1;
+        int lastColor = 0;
+        byte lastIndex = -1;
+        for (int i = 0; i < pixelCount; i++) {
+            int color = pixels[i];
+            if (color == lastColor && lastIndex != -1) {
+                indices[i] = lastIndex;
+
+                continue;
+            }
+            int slot = (color * 0x9E3779B9) >>> 22 & mask;
+            while (tableValues[slot] != 0 && tableKeys[slot] != color) slot = (slot + 1) & mask;
+            if (tableValues[slot] == 0) {
+                if (paletteSize == MAX_PALETTE_SIZE) return false;
+
+                palette[paletteSize] = color;
+                tableKeys[slot] = color;
+                tableValues[slot] = (short) ++paletteSize;
+            }
+            lastColor = color;
+            lastIndex = (byte) (tableValues[slot] - 1);
+            indices[i] = lastIndex;
+        }
+
+        return true;
+    }
+
+    private int packScanlines(int width, int height, int bitDepth) {
+        int rowLength = 1 + (width * bitDepth + 7) / 8; // including the filter type byte
+        int rawLength = rowLength * height;
+        if (raw.length < rawLength) raw = new byte[rawLength];
+
+        int pixelsPerByte = 8 / bitDepth;
+        int position = 0;
+        for (int y = 0; y < height; y++) {
+            raw[position++] = 0; // no filtering, recommended for palette-based images
+            int rowStart = y * width;
+            for (int x = 0; x < width; x += pixelsPerByte) {
+                int packed = 0;
+                for (int i = 0; i < pixelsPerByte; i++) {
+                    packed <<= bitDepth;
+                    if (x + i < width) packed |= indices[rowStart + x + i] & 0xFF;
+                }
+                raw[position++] = (byte) packed;
+            }
+        }
+
+        return rawLength;
+    }
+
+    private int deflate(int rawLength) {
+        deflater.reset();
+        deflater.setInput(raw, 0, rawLength);
+        deflater.finish();
+
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, Math.max(compressed.length * 2, 8192));
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        return length;
+    }
+
+    private void writeHeader(int width, int height, int bitDepth) {
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = (byte) bitDepth;
+        header[9] = COLOR_TYPE_INDEXED;
+        // compression method, filter method and interlace method are all 0
+
+        writeChunk("IHDR", header, header.length);
+    }
+
+    private void writePalette() {
+        byte[] rgb = new byte[paletteSize * 3];
+        byte[] alpha = new byte[paletteSize];
+        boolean transparent = false;
+        for (int i = 0; i < paletteSize; i++) {
+            int color = palette[i];
+            rgb[i * 3] = (byte) (color >>> 16);
+            rgb[i * 3 + 1] = (byte) (color >>> 8);
+            rgb[i * 3 + 2] = (byte) color;
+            alpha[i] = (byte) (color >>> 24);
+
+            if (alpha[i] != (byte) 0xFF) transparent = true;
+        }
+
+        writeChunk("PLTE", rgb, rgb.length);
+        if (transparent) writeChunk("tRNS", alpha, alpha.length);
+    }
+
+    private void writeChunk(String type, byte[] data, int length) {
+        putInt(chunkHeader, 0, length);
+        for (int i = 0; i < 4; i++) chunkHeader[4 + i] = (byte) type.charAt(i);
+        output.write(chunkHeader, 0, chunkHeader.length);
+        output.write(data, 0, length);
+
+        crc32.reset();
+        crc32.update(chunkHeader, 4, 4);
+        crc32.update(data, 0, length);
+        putInt(chunkHeader, 0, (int) crc32.getValue());
+        output.write(chunkHeader, 0, 4);
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+    }
+
+    private static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+}
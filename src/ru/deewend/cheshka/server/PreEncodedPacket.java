@@ -0,0 +1,73 @@
+package ru.deewend.cheshka.server;
+
+import ru.deewend.cheshka.server.annotation.Clientbound;
+import ru.deewend.cheshka.server.packet.Disconnect;
+import ru.deewend.cheshka.server.packet.ServerHello;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * A clientbound packet which never changes once created. It is serialized at most once per signature
+ * scheme, after that every connection gets the same array. The packet must not be modified afterwards.
+ */
+public class PreEncodedPacket {
+    /*
+     * The key is (protocol version << 8) | capabilities.
+     */
+    private static final Map<Integer, PreEncodedPacket> SERVER_HELLO_REGISTRY = new ConcurrentHashMap<>();
+
+    private final Packet packet;
+    private final AtomicReferenceArray<byte[]> serialized =
+            new AtomicReferenceArray<>(Helper.SIGNATURE_SCHEME_COUNT);
+
+    public PreEncodedPacket(Packet packet) {
+        Class<?> clazz = packet.getClass();
+        if (!clazz.isAnnotationPresent(Clientbound.class)) {
+            throw new IllegalArgumentException(clazz.getName() + " packet is not annotated as @Clientbound");
+        }
+
+        this.packet = packet;
+    }
+
+    public static PreEncodedPacket disconnect(String reason) {
+        Disconnect disconnect = new Disconnect();
+        disconnect.reason = reason;
+
+        return new PreEncodedPacket(disconnect);
+    }
+
+    /*
+     * ServerHello is always signed using Helper.SIGNATURE_SCHEME_CRC32, get(byte) should be called accordingly.
+     */
+    public static PreEncodedPacket serverHello(int protocolVersion, byte capabilities) {
+        int key = (protocolVersion << 8) | (capabilities & 0xFF);
+
+        return SERVER_HELLO_REGISTRY.computeIfAbsent(key, k -> {
+            ServerHello serverHello = new ServerHello();
+            serverHello.serverVersionCode = protocolVersion;
+            serverHello.capabilities = capabilities;
+
+            return new PreEncodedPacket(serverHello);
+        });
+    }
+
+    public byte[] get(byte signatureScheme) {
+        byte[] result = serialized.get(signatureScheme);
+        if (result == null) {
+            try {
+                result = packet.serialize(signatureScheme);
+            } catch (IOException | ReflectiveOperationException e) {
+                throw new RuntimeException("Serializing " + packet.getClass().getSimpleName(), e);
+            }
+            /*
+             * Two threads might serialize the packet simultaneously, both results are identical.
+             */
+            if (!serialized.compareAndSet(signatureScheme, null, result)) result = serialized.get(signatureScheme);
+        }
+
+        return result;
+    }
+}
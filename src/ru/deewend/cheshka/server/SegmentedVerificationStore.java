@@ -0,0 +1,261 @@
+package ru.deewend.cheshka.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/*
+ * Records are stored in segment files, each of which covers SEGMENT_DURATION_DAYS worth of verification
+ * timestamps and is named after the first millisecond of that period. Outdated records are removed by deleting
+ * whole segments, so nothing is ever rewritten. A segment is only deleted once the newest record it contains is
+ * outdated, so segments written with a different dbSegmentDurationDays are still handled correctly.
+ * Every record is followed by a CRC32C of its contents, a torn write at the end of a segment is truncated.
+ */
+public class SegmentedVerificationStore implements VerificationStore {
+    public static final double SEGMENT_DURATION_DAYS =
+            Double.parseDouble(Helper.getProperty("dbSegmentDurationDays", "7"));
+    public static final int RECORD_SIZE = DB.ENTRY_SIZE + 4;
+    public static final File DIRECTORY = new File("verifiedClientIdentifiers");
+
+    private static final long SEGMENT_DURATION_MS = (long) (TimeUnit.DAYS.toMillis(1L) * SEGMENT_DURATION_DAYS);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".db";
+
+    private final File directory = DIRECTORY;
+    private final CRC32C crc32c = new CRC32C(); // guarded by this
+    private final Map<Long, Long> newestTimestamps = new HashMap<>(); // of every segment, guarded by this
+    private FileChannel appendChannel; // guarded by this
+    private long appendSegment = -1L;
+
+    @Override
+    public synchronized void load(EntryConsumer consumer) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        migrate();
+
+        long oldestLiveTimestamp = System.currentTimeMillis() - DB.MAX_CAPTCHA_VERIFICATION_AGE_MS;
+        for (long segment : listSegments()) {
+            long newestTimestamp = loadSegment(segment, oldestLiveTimestamp, consumer);
+            if (newestTimestamp < oldestLiveTimestamp) {
+                deleteSegment(segment);
+
+                continue;
+            }
+            newestTimestamps.put(segment, newestTimestamp);
+        }
+    }
+
+    /*
+     * Passes the records which are not outdated to the consumer. Returns the newest timestamp
+     * found in the segment, or Long.MIN_VALUE if it has no valid records.
+     */
+    private long loadSegment(long segment, long oldestLiveTimestamp, EntryConsumer consumer) throws IOException {
+        File file = getFile(segment);
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        long validLength = 0L;
+        long newestTimestamp = Long.MIN_VALUE;
+        int corrupted = 0;
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            while (stream.readNBytes(record, 0, RECORD_SIZE) == RECORD_SIZE) {
+                validLength += RECORD_SIZE;
+                if (buffer.getInt(DB.ENTRY_SIZE) != checksum(record)) {
+                    corrupted++;
+
+                    continue;
+                }
+
+                long timestamp = buffer.getLong(16);
+                newestTimestamp = Math.max(newestTimestamp, timestamp);
+                if (timestamp >= oldestLiveTimestamp) consumer.accept(buffer.getLong(0), buffer.getLong(8), timestamp);
+            }
+        }
+        if (corrupted > 0) {
+            Log.w("Skipped " + corrupted + " corrupted record(s) in " + file);
+        }
+        if (file.length() != validLength) {
+            Log.w("Truncating an incomplete record at the end of " + file);
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+
+        return newestTimestamp;
+    }
+
+    /*
+     * Moves the records of the single-file DB (see FileVerificationStore) to segments.
+     */
+    private void migrate() throws IOException {
+        File legacyFile = FileVerificationStore.DB_FILE;
+        if (!legacyFile.isFile()) return;
+
+        Log.i("Migrating " + legacyFile + " to " + directory);
+        long[] batch = new long[3 * 1024];
+        int[] count = new int[1];
+        long oldestLiveTimestamp = System.currentTimeMillis() - DB.MAX_CAPTCHA_VERIFICATION_AGE_MS;
+        try {
+            (new FileVerificationStore()).load((most, least, timestamp) -> {
+                if (timestamp < oldestLiveTimestamp) return;
+
+                int offset = count[0] * 3;
+                batch[offset] = most;
+                batch[offset + 1] = least;
+                batch[offset + 2] = timestamp;
+                if (++count[0] * 3 == batch.length) {
+                    appendUnchecked(batch, count[0]);
+                    count[0] = 0;
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        /*
+         * If the migration gets interrupted, it will be started over. Duplicate records are harmless.
+         */
+        append(batch, count[0], true);
+        closeAppendChannel();
+
+        File migratedFile = new File(legacyFile.getPath() + ".migrated");
+        if (!legacyFile.renameTo(migratedFile)) {
+            throw new IOException("Failed to rename " + legacyFile + " to " + migratedFile);
+        }
+        Log.i("Migration completed, the old file was renamed to " + migratedFile);
+    }
+
+    private void appendUnchecked(long[] entries, int count) {
+        try {
+            append(entries, count, false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void append(long[] entries, int count, boolean force) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * RECORD_SIZE);
+        long segment = -1L;
+        try {
+            for (int i = 0; i < count; i++) {
+                long timestamp = entries[i * 3 + 2];
+                long entrySegment = getSegment(timestamp);
+                if (entrySegment != segment && buffer.position() > 0) {
+                    write(segment, buffer, force);
+                }
+                segment = entrySegment;
+                newestTimestamps.merge(segment, timestamp, Math::max);
+
+                int start = buffer.position();
+                buffer.putLong(entries[i * 3]);
+                buffer.putLong(entries[i * 3 + 1]);
+                buffer.putLong(timestamp);
+                buffer.putInt(checksum(buffer.array(), start));
+            }
+            if (buffer.position() > 0) write(segment, buffer, force);
+        } catch (IOException e) {
+            closeAppendChannel(); // will be reopened by the next attempt
+
+            throw e;
+        }
+    }
+
+    private void write(long segment, ByteBuffer buffer, boolean force) throws IOException {
+        if (segment != appendSegment) {
+            closeAppendChannel();
+
+            appendChannel = FileChannel.open(getFile(segment).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            appendSegment = segment;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) appendChannel.write(buffer);
+        if (force) appendChannel.force(false);
+
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void maintain(long currentTime) {
+        long oldestLiveTimestamp = currentTime - DB.MAX_CAPTCHA_VERIFICATION_AGE_MS;
+        newestTimestamps.entrySet().removeIf(entry -> {
+            if (entry.getValue() >= oldestLiveTimestamp) return false;
+
+            long segment = entry.getKey();
+            if (segment == appendSegment) closeAppendChannel();
+            deleteSegment(segment);
+
+            return true;
+        });
+    }
+
+    private long[] listSegments() {
+        String[] names = directory.list();
+        if (names == null) return new long[0];
+
+        long[] segments = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+
+            String number = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+            try {
+                segments[count] = Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            count++;
+        }
+        segments = Arrays.copyOf(segments, count);
+        Arrays.sort(segments);
+
+        return segments;
+    }
+
+    private void deleteSegment(long segment) {
+        File file = getFile(segment);
+        if (file.delete()) {
+            Log.i("Deleted an outdated DB segment " + file);
+        } else {
+            Log.w("Failed to delete an outdated DB segment " + file);
+        }
+    }
+
+    private File getFile(long segment) {
+        return new File(directory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    /*
+     * Returns the first millisecond of the period the timestamp belongs to.
+     */
+    private static long getSegment(long timestamp) {
+        return timestamp - Math.floorMod(timestamp, SEGMENT_DURATION_MS);
+    }
+
+    private int checksum(byte[] record) {
+        return checksum(record, 0);
+    }
+
+    private int checksum(byte[] buf, int offset) {
+        crc32c.reset();
+        crc32c.update(buf, offset, DB.ENTRY_SIZE);
+
+        return (int) crc32c.getValue();
+    }
+
+    private void closeAppendChannel() {
+        if (appendChannel == null) return;
+
+        Helper.close(appendChannel);
+        appendChannel = null;
+        appendSegment = -1L;
+    }
+}
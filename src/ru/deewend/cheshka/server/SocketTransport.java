@@ -0,0 +1,66 @@
+package ru.deewend.cheshka.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+public class SocketTransport implements Transport {
+    public static final int OUTPUT_BUFFER_SIZE = 8192;
+
+    private final Socket socket;
+    private OutputStream outputStream;
+
+    public SocketTransport(Socket socket) {
+        this.socket = socket;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public synchronized void write(byte[] data) throws IOException {
+        if (outputStream == null) {
+            /*
+             * Packets are accumulated until flush() is called, which usually results in a single syscall.
+             */
+            outputStream = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+        }
+
+        outputStream.write(data);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (outputStream != null) outputStream.flush();
+    }
+
+    @Override
+    public void close() {
+        Helper.close(socket);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    /*
+     * Doesn't see the data which has been read ahead by a buffered stream wrapping getInputStream().
+     */
+    @Override
+    public boolean hasPendingInput() {
+        try {
+            return socket.getInputStream().available() > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getHostAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+}
@@ -0,0 +1,45 @@
+package ru.deewend.cheshka.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * While a batch is active on the current thread, packets which are sent by this thread
+ * are only queued. Each connection is then drained once when the batch ends, so everything
+ * it has received during a tick reaches the socket in a single write.
+ */
+public class TickBatch {
+    private static final ThreadLocal<TickBatch> CURRENT = new ThreadLocal<>();
+
+    private final Set<OutboundQueue> deferred = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final List<OutboundQueue> order = new ArrayList<>();
+
+    public void begin() {
+        if (CURRENT.get() != null) throw new IllegalStateException("Another batch is already active");
+
+        CURRENT.set(this);
+    }
+
+    public void end() {
+        CURRENT.remove();
+
+        for (OutboundQueue queue : order) queue.drainLater();
+        deferred.clear();
+        order.clear();
+    }
+
+    /*
+     * Returns false if there is no active batch, meaning the queue should be drained right away.
+     */
+    static boolean defer(OutboundQueue queue) {
+        TickBatch batch = CURRENT.get();
+        if (batch == null) return false;
+
+        if (batch.deferred.add(queue)) batch.order.add(queue);
+
+        return true;
+    }
+}
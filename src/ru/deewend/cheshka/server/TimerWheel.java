@@ -0,0 +1,99 @@
+package ru.deewend.cheshka.server;
+
+import java.util.List;
+
+/*
+ * A hashed timer wheel. A timer is put into the slot its deadline falls into, so scheduling and cancelling
+ * take constant time, and advancing the wheel only looks at the slots which have come due rather than at
+ * every timer. Timers further away than a full turn of the wheel stay in their slot and are skipped until
+ * their turn comes. Not thread-safe.
+ */
+public class TimerWheel<T> {
+    public static class Timer<T> {
+        private final T owner;
+        private long deadline;
+        private Timer<T> previous;
+        private Timer<T> next;
+        private boolean scheduled;
+
+        public Timer(T owner) {
+            this.owner = owner;
+        }
+
+        public boolean isScheduled() {
+            return scheduled;
+        }
+    }
+
+    private final long resolutionMillis;
+    private final Timer<T>[] slots; // each one is the sentinel of a circular doubly linked list
+    private final int mask;
+    private long currentTick; // every slot up to this one has been processed
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long resolutionMillis, int slotCount, long currentTime) {
+        int capacity = Integer.highestOneBit(Math.max(slotCount, 2) - 1) << 1;
+        this.resolutionMillis = resolutionMillis;
+        slots = (Timer<T>[]) new Timer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            Timer<T> sentinel = new Timer<>(null);
+            sentinel.previous = sentinel;
+            sentinel.next = sentinel;
+            slots[i] = sentinel;
+        }
+        mask = capacity - 1;
+        currentTick = currentTime / resolutionMillis;
+    }
+
+    /*
+     * Reschedules the timer if it is already scheduled.
+     */
+    public void schedule(Timer<T> timer, long deadline) {
+        cancel(timer);
+
+        /*
+         * Rounded up, so a timer never fires before its deadline. The ones already due fire on the next advance.
+         */
+        long tick = Math.max(Math.ceilDiv(deadline, resolutionMillis), currentTick + 1);
+        Timer<T> sentinel = slots[(int) tick & mask];
+        timer.deadline = deadline;
+        timer.previous = sentinel.previous;
+        timer.next = sentinel;
+        sentinel.previous.next = timer;
+        sentinel.previous = timer;
+        timer.scheduled = true;
+    }
+
+    public void cancel(Timer<T> timer) {
+        if (!timer.scheduled) return;
+
+        timer.previous.next = timer.next;
+        timer.next.previous = timer.previous;
+        timer.previous = null;
+        timer.next = null;
+        timer.scheduled = false;
+    }
+
+    /*
+     * Unschedules the timers which have expired by currentTime and adds their owners to the list.
+     */
+    public void advance(long currentTime, List<T> expired) {
+        long targetTick = currentTime / resolutionMillis;
+        if (targetTick <= currentTick) return;
+
+        long ticks = Math.min(targetTick - currentTick, slots.length); // after a long pause, each slot is visited once
+        for (long i = 1; i <= ticks; i++) {
+            Timer<T> sentinel = slots[(int) (currentTick + i) & mask];
+            Timer<T> timer = sentinel.next;
+            while (timer != sentinel) {
+                Timer<T> next = timer.next;
+                if (timer.deadline <= currentTime) {
+                    cancel(timer);
+                    expired.add(timer.owner);
+                }
+                timer = next;
+            }
+        }
+        currentTick = targetTick;
+    }
+}
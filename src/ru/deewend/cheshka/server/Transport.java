@@ -0,0 +1,27 @@
+package ru.deewend.cheshka.server;
+
+import java.io.IOException;
+
+public interface Transport {
+    /*
+     * The data is not guaranteed to reach the client until flush() is called.
+     */
+    void write(byte[] data) throws IOException;
+
+    void flush() throws IOException;
+
+    /*
+     * Data which was written and flushed before calling this method should still be delivered.
+     */
+    void close();
+
+    boolean isClosed();
+
+    /*
+     * Whether the client has already sent more data after the packet which is being handled,
+     * i.e. it did not wait for the response. Can only be called by the thread handling the packet.
+     */
+    boolean hasPendingInput();
+
+    String getHostAddress();
+}
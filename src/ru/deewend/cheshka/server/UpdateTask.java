@@ -2,17 +2,23 @@ package ru.deewend.cheshka.server;
 
 import ru.deewend.cheshka.server.packet.HomeData;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
 import static ru.deewend.cheshka.server.CheshkaServer.MAX_SLEEP_TIME_MS;
 
 public class UpdateTask implements Runnable {
     public static final long PING_INTERVAL = TimeUnit.SECONDS.toMillis(30L);
+    public static final boolean SEND_HOME_DATA_ON_CHANGE_ONLY =
+            Boolean.parseBoolean(Helper.getProperty("sendHomeDataOnChangeOnly", "false"));
+    public static final long HOME_DATA_DEBOUNCE_INTERVAL_MILLIS =
+            Long.parseLong(Helper.getProperty("homeDataDebounceIntervalMillis", "5000"));
 
     private final CheshkaServer server;
+    private final TickBatch tickBatch = new TickBatch();
     private long lastPing;
+    private int lastOnlinePlayerCount = -1;
+    private int lastActiveGamesCount = -1;
 
     public UpdateTask(CheshkaServer server) {
         this.server = server;
@@ -44,35 +50,62 @@ public class UpdateTask implements Runnable {
         }
     }
 
-    private void tick() {
-        DB.getInstance().tick();
-
-        if (System.currentTimeMillis() - lastPing >= PING_INTERVAL) {
-            HomeData homeData = Helper.craftHomeData(server);
-            server.accessAuthenticatedUsers(authenticatedUsers -> {
-                if (authenticatedUsers.isEmpty()) return;
+    private void tick() throws Throwable {
+        tickBatch.begin();
+        try {
+            tick0();
+        } finally {
+            tickBatch.end();
+        }
+    }
 
-                for (ClientHandler handler : authenticatedUsers) {
-                    handler.externalSendPacket(homeData);
+    private void tick0() throws Throwable {
+        DB.getInstance().tick();
+        LogRateLimiter.tick();
+
+        long currentTime = System.currentTimeMillis();
+        if (SEND_HOME_DATA_ON_CHANGE_ONLY) {
+            if (currentTime - lastPing >= HOME_DATA_DEBOUNCE_INTERVAL_MILLIS) {
+                HomeData homeData = Helper.craftHomeData(server);
+                if (homeData.onlinePlayerCount != lastOnlinePlayerCount ||
+                        homeData.activeGamesCount != lastActiveGamesCount) {
+
+                    broadcastHomeData(homeData);
+                    lastOnlinePlayerCount = homeData.onlinePlayerCount;
+                    lastActiveGamesCount = homeData.activeGamesCount;
                 }
-            });
 
-            lastPing = System.currentTimeMillis();
-        }
+                lastPing = currentTime;
+            }
+        } else if (currentTime - lastPing >= PING_INTERVAL) {
+            broadcastHomeData(Helper.craftHomeData(server));
 
-        server.accessGameRooms(gameRooms -> {
-            if (gameRooms.isEmpty()) return;
+            lastPing = currentTime;
+        }
 
-            List<GameRoom> roomsForRemoval = new ArrayList<>();
+        server.getGameRooms().tick();
+    }
 
-            for (GameRoom room : gameRooms) {
-                if (!room.tick()) {
-                    room.cleanup();
-                    roomsForRemoval.add(room);
+    private void broadcastHomeData(HomeData homeData) {
+        /*
+         * The same array is shared by all recipients which have negotiated the same signature scheme.
+         */
+        byte[][] serialized = new byte[Helper.SIGNATURE_SCHEME_COUNT][];
+
+        server.accessAuthenticatedUsers(authenticatedUsers -> {
+            if (authenticatedUsers.isEmpty()) return;
+
+            for (ClientHandler handler : authenticatedUsers) {
+                byte signatureScheme = handler.getSignatureScheme();
+                if (serialized[signatureScheme] == null) {
+                    try {
+                        serialized[signatureScheme] = homeData.serialize(signatureScheme);
+                    } catch (IOException | ReflectiveOperationException e) {
+                        throw new RuntimeException("Serializing HomeData", e);
+                    }
                 }
-            }
-            for (GameRoom room : roomsForRemoval) {
-                gameRooms.remove(room);
+
+                handler.externalSendSerializedPacket(serialized[signatureScheme]);
             }
         });
     }
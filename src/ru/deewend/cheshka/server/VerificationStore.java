@@ -0,0 +1,29 @@
+package ru.deewend.cheshka.server;
+
+import java.io.IOException;
+
+/*
+ * Persistent storage of verified client identifiers. Lookups are served by DB from memory,
+ * so a store only has to load the entries once, append new ones and get rid of the outdated ones.
+ * Implementations should be thread-safe.
+ */
+public interface VerificationStore {
+    interface EntryConsumer {
+        void accept(long most, long least, long timestamp);
+    }
+
+    /*
+     * Entries are passed in the order they were appended.
+     */
+    void load(EntryConsumer consumer) throws IOException;
+
+    /*
+     * The array consists of (most significant bits, least significant bits, timestamp) triples.
+     */
+    void append(long[] entries, int count, boolean force) throws IOException;
+
+    /*
+     * Called periodically by a background thread unless automatic cleanup is disabled.
+     */
+    void maintain(long currentTime);
+}
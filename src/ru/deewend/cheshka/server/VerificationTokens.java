@@ -0,0 +1,166 @@
+package ru.deewend.cheshka.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Issues client identifiers which prove by themselves that the captcha has been solved, so verifying
+ * a returning client takes no I/O. The 16 bytes of such a UUID consist of the expiry time (4 bytes,
+ * seconds since the epoch), a random nonce (6 bytes) and the truncated HMAC-SHA256 of the former two
+ * (6 bytes). Servers sharing the key accept each other's tokens.
+ */
+public class VerificationTokens {
+    /*
+     * Base64 of at least 16 bytes. If not specified, the key is read from KEY_FILE, which is generated if missing.
+     */
+    public static final String KEY = Helper.getProperty("verificationTokenKey", "");
+    public static final File KEY_FILE =
+            new File(Helper.getProperty("verificationTokenKeyFile", "verificationTokenKey"));
+    public static final int MIN_KEY_SIZE = 16;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int EXPIRY_SIZE = 4;
+    private static final int NONCE_SIZE = 6;
+    private static final int MAC_SIZE = 6;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+    private static final VerificationTokens INSTANCE = new VerificationTokens();
+
+    private final SecureRandom random = new SecureRandom();
+    private final Mac mac; // guarded by itself
+
+    private VerificationTokens() {
+        byte[] key;
+        try {
+            key = loadKey();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load the verification token key", e);
+        }
+        try {
+            mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static VerificationTokens getInstance() {
+        return INSTANCE;
+    }
+
+    private static byte[] loadKey() throws IOException {
+        byte[] key;
+        if (!KEY.isEmpty()) {
+            key = Base64.getDecoder().decode(KEY);
+        } else if (KEY_FILE.isFile()) {
+            Path path = KEY_FILE.toPath();
+            if (path.getFileSystem().supportedFileAttributeViews().contains("posix") &&
+                    !OWNER_ONLY.containsAll(Files.getPosixFilePermissions(path))
+            ) {
+                Log.w(KEY_FILE + " is accessible by other users, consider running chmod 600 on it");
+            }
+            key = Files.readAllBytes(path);
+        } else {
+            key = new byte[32];
+            (new SecureRandom()).nextBytes(key);
+            writeKeyFile(key);
+            Log.i("Generated a new verification token key, saved to " + KEY_FILE);
+        }
+        if (key.length < MIN_KEY_SIZE) {
+            throw new IllegalArgumentException("The verification token key should be at least " +
+                    MIN_KEY_SIZE + " bytes long, got " + key.length);
+        }
+
+        return key;
+    }
+
+    /*
+     * The key is written to a temporary file which is readable only by the owner from the very beginning,
+     * and then moved into place, so it is never exposed (nor left half-written).
+     */
+    private static void writeKeyFile(byte[] key) throws IOException {
+        Path path = KEY_FILE.toPath().toAbsolutePath();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temporary, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } else {
+            Files.createFile(temporary);
+            /*
+             * Not a POSIX file system (e.g. Windows), the access can only be restricted afterwards.
+             */
+            File file = temporary.toFile();
+            if (!file.setReadable(false, false) || !file.setReadable(true, true) ||
+                    !file.setWritable(false, false) || !file.setWritable(true, true)
+            ) {
+                Files.delete(temporary);
+
+                throw new IOException("Couldn't make " + temporary + " accessible only by its owner");
+            }
+            Log.w("Couldn't create " + KEY_FILE + " with POSIX permissions, make sure it isn't readable by others");
+        }
+        try {
+            Files.write(temporary, key);
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+
+            throw e;
+        }
+    }
+
+    public UUID issue(long currentTime) {
+        long expiry = TimeUnit.MILLISECONDS.toSeconds(currentTime + DB.MAX_CAPTCHA_VERIFICATION_AGE_MS);
+
+        ByteBuffer token = ByteBuffer.allocate(EXPIRY_SIZE + NONCE_SIZE + MAC_SIZE);
+        token.putInt((int) Math.min(expiry, 0xFFFFFFFFL));
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        token.put(nonce);
+        token.put(sign(token.array()), 0, MAC_SIZE);
+
+        return new UUID(token.getLong(0), token.getLong(8));
+    }
+
+    /*
+     * Pure CPU, doesn't check whether the token is revoked.
+     */
+    public boolean verify(UUID clientId, long currentTime) {
+        if (getExpiryMillis(clientId) <= currentTime) return false;
+
+        ByteBuffer token = ByteBuffer.allocate(EXPIRY_SIZE + NONCE_SIZE + MAC_SIZE);
+        token.putLong(clientId.getMostSignificantBits());
+        token.putLong(clientId.getLeastSignificantBits());
+        byte[] expectedMac = sign(token.array());
+        int difference = 0; // compared in constant time
+        for (int i = 0; i < MAC_SIZE; i++) difference |= expectedMac[i] ^ token.get(EXPIRY_SIZE + NONCE_SIZE + i);
+
+        return difference == 0;
+    }
+
+    private static long getExpiryMillis(UUID clientId) {
+        return TimeUnit.SECONDS.toMillis(clientId.getMostSignificantBits() >>> 32);
+    }
+
+    private byte[] sign(byte[] token) {
+        synchronized (mac) {
+            mac.update(token, 0, EXPIRY_SIZE + NONCE_SIZE);
+
+            return mac.doFinal();
+        }
+    }
+}
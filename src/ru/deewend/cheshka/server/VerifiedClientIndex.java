@@ -0,0 +1,114 @@
+package ru.deewend.cheshka.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * An open addressing hash table mapping client identifiers (as two longs) to their verification timestamps.
+ * Lookups are lock-free, modifications are expected to be serialized by the caller. Each slot occupies
+ * three consecutive longs: most significant bits, least significant bits and the timestamp. A slot is
+ * considered free while its timestamp is zero, so the timestamp is published last (with release semantics).
+ * Removals are done by building a new table and replacing the current one.
+ */
+public class VerifiedClientIndex {
+    private static final int SLOT_SIZE = 3;
+    private static final int MIN_CAPACITY = 1024;
+
+    private static class Table {
+        final AtomicLongArray slots;
+        final int mask;
+
+        Table(int capacity) {
+            slots = new AtomicLongArray(capacity * SLOT_SIZE);
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table table = new Table(MIN_CAPACITY);
+    private int size;
+
+    private static int hash(long most, long least) {
+        long h = most ^ (least * 0x9E3779B97F4A7C15L);
+        h ^= (h >>> 33);
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= (h >>> 33);
+
+        return (int) h;
+    }
+
+    /*
+     * Returns the timestamp, or 0 if the client is unknown.
+     */
+    public long get(long most, long least) {
+        Table table = this.table;
+        AtomicLongArray slots = table.slots;
+        for (int i = hash(most, least) & table.mask; ; i = (i + 1) & table.mask) {
+            int base = i * SLOT_SIZE;
+            long timestamp = slots.getAcquire(base + 2);
+            if (timestamp == 0L) return 0L;
+
+            if (slots.getPlain(base) == most && slots.getPlain(base + 1) == least) return timestamp;
+        }
+    }
+
+    /*
+     * Replaces the timestamp if the client is already present. The timestamp should be positive.
+     */
+    public void put(long most, long least, long timestamp) {
+        if ((size + 1) * 2L > table.mask + 1L) table = rebuild(table, (table.mask + 1) * 2, Long.MIN_VALUE);
+
+        if (insert(table, most, least, timestamp)) size++;
+    }
+
+    /*
+     * Removes all the entries which have been verified before the specified moment.
+     */
+    public void removeOlderThan(long timestamp) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < size * 2) capacity *= 2;
+
+        table = rebuild(table, capacity, timestamp);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private Table rebuild(Table old, int capacity, long minTimestamp) {
+        Table result = new Table(capacity);
+        int newSize = 0;
+        AtomicLongArray slots = old.slots;
+        for (int base = 0; base < slots.length(); base += SLOT_SIZE) {
+            long timestamp = slots.getPlain(base + 2);
+            if (timestamp == 0L || timestamp < minTimestamp) continue;
+
+            insert(result, slots.getPlain(base), slots.getPlain(base + 1), timestamp);
+            newSize++;
+        }
+        size = newSize;
+
+        return result;
+    }
+
+    /*
+     * Returns true if a new slot has been occupied.
+     */
+    private static boolean insert(Table table, long most, long least, long timestamp) {
+        AtomicLongArray slots = table.slots;
+        for (int i = hash(most, least) & table.mask; ; i = (i + 1) & table.mask) {
+            int base = i * SLOT_SIZE;
+            long current = slots.getPlain(base + 2);
+            if (current == 0L) {
+                slots.setPlain(base, most);
+                slots.setPlain(base + 1, least);
+                slots.setRelease(base + 2, timestamp);
+
+                return true;
+            }
+            if (slots.getPlain(base) == most && slots.getPlain(base + 1) == least) {
+                slots.setRelease(base + 2, timestamp);
+
+                return false;
+            }
+        }
+    }
+}
@@ -6,5 +6,12 @@ import java.lang.annotation.RetentionPolicy;
 @Retention(RetentionPolicy.RUNTIME)
 public @interface OnlyWhen {
     String field();
-    String is();
+    /*
+     * The condition holds if the field has exactly this value. Leave it empty to use atLeast() instead.
+     */
+    String is() default "";
+    /*
+     * Only used if is() is empty: the condition holds if the (numeric) field is at least this value.
+     */
+    long atLeast() default Long.MIN_VALUE;
 }
@@ -6,13 +6,26 @@ import ru.deewend.cheshka.server.annotation.Serverbound;
 
 @Serverbound
 public class ClientHello extends Packet {
+    /*
+     * Capabilities are only taken into account since protocol version 6, see Helper.SIGNATURE_SCHEME_*.
+     */
+    public static final byte CAPABILITY_CRC32C_SIGNATURES = 0x01;
+    public static final byte CAPABILITY_PACKET_SIGNATURES = 0x02;
+    /*
+     * The client sends ClientIdentification right after ClientHello without waiting for ServerHello. It is
+     * signed as if the server has accepted the requested signature capability (CAPABILITY_PACKET_SIGNATURES
+     * takes precedence), which it always does. The server replies with ServerHello, IdentificationResult,
+     * OpponentFound (in case of a reconnect) and HomeData in a single write.
+     */
+    public static final byte CAPABILITY_PIPELINED_HANDSHAKE = 0x04;
+
     @Order(no = 1) public int magic;
     @Order(no = 2) public int clientVersionCode;
     @Order(no = 3) public byte protocolVersion;
     @Order(no = 4) public String serverAddress;
     @Order(no = 5) public int serverPort;
     @Order(no = 6) public String language; // ISO 639 two-letter code
-    @Order(no = 7) public byte reserved;
+    @Order(no = 7) public byte capabilities; // used to be reserved
 
     @Override
     public int getId() {
@@ -1,6 +1,5 @@
 package ru.deewend.cheshka.server.packet;
 
-import java.awt.image.BufferedImage;
 import java.util.UUID;
 
 import ru.deewend.cheshka.server.Packet;
@@ -16,7 +15,7 @@ public class IdentificationResult extends Packet {
     @OnlyWhen(field = "success", is = "true")
     @Order(no = 3) public UUID clientId;
     @OnlyWhen(field = "success", is = "false")
-    @Order(no = 4) public BufferedImage captcha;
+    @Order(no = 4) public byte[] captcha; // PNG
 
     @Override
     public int getId() {
@@ -3,6 +3,7 @@ package ru.deewend.cheshka.server.packet;
 import ru.deewend.cheshka.server.Helper;
 import ru.deewend.cheshka.server.Packet;
 import ru.deewend.cheshka.server.annotation.Clientbound;
+import ru.deewend.cheshka.server.annotation.OnlyWhen;
 import ru.deewend.cheshka.server.annotation.Order;
 
 import java.util.Date;
@@ -14,8 +15,13 @@ public class ServerHello extends Packet {
                     .replace("%time%", (new Date()).toString());
 
     @Order(no = 1) public final int magic = Helper.SERVER_HELLO_MAGIC;
-    @Order(no = 2) public final int serverVersionCode = Helper.SERVER_VERSION_CODE;
+    @Order(no = 2) public int serverVersionCode = Helper.SERVER_VERSION_CODE; // the protocol version being used
     @Order(no = 3) public final String serverMOTD = SERVER_MOTD;
+    /*
+     * The subset of ClientHello capabilities the server has agreed to use.
+     */
+    @OnlyWhen(field = "serverVersionCode", atLeast = Helper.FRAMED_PROTOCOL_VERSION_CODE)
+    @Order(no = 4) public byte capabilities;
 
     @Override
     public int getId() {
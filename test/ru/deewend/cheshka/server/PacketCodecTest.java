@@ -0,0 +1,225 @@
+package ru.deewend.cheshka.server;
+
+import ru.deewend.cheshka.server.annotation.Clientbound;
+import ru.deewend.cheshka.server.annotation.OnlyWhen;
+import ru.deewend.cheshka.server.annotation.Serverbound;
+import ru.deewend.cheshka.server.packet.*;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.util.*;
+
+/*
+ * Checks that PacketCodec reads and writes every packet exactly like the reflective implementation
+ * in Packet does, for both branches of each @OnlyWhen condition and with every signature scheme.
+ * Throws an AssertionError on the first mismatch.
+ */
+public class PacketCodecTest {
+    private static final Class<?>[] PACKETS = {
+            CancelMatchmaking.class, ClientHello.class, ClientIdentification.class, DiceRolled.class,
+            Disconnect.class, HomeData.class, IdentificationResult.class, InitiateMatchmaking.class, MakeMove.class,
+            MatchmakingStarted.class, OpponentFound.class, OpponentNotFound.class, Resign.class, RollDice.class,
+            ServerHello.class
+    };
+    private static final int RANDOM_ROUNDS = 20;
+
+    private final Random random = new Random(0x6E55CA);
+    private int checks;
+
+    public static void main(String[] args) throws Exception {
+        checkPacketListIsComplete();
+
+        PacketCodecTest test = new PacketCodecTest();
+        for (Class<?> clazz : PACKETS) test.check(clazz);
+
+        System.out.println("PacketCodecTest: " + test.checks + " checks passed");
+    }
+
+    /*
+     * Fails if a packet class has been added without being listed in PACKETS (only when running from a directory).
+     */
+    private static void checkPacketListIsComplete() {
+        URL url = ServerHello.class.getResource(ServerHello.class.getSimpleName() + ".class");
+        if (url == null || !url.getProtocol().equals("file")) return;
+
+        File[] files = new File(url.getPath()).getParentFile().listFiles();
+        if (files == null) return;
+
+        Set<String> listed = new HashSet<>();
+        for (Class<?> clazz : PACKETS) listed.add(clazz.getSimpleName() + ".class");
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".class") && !name.contains("$") && !listed.contains(name)) {
+                throw new AssertionError(name + " is not covered by PacketCodecTest");
+            }
+        }
+    }
+
+    private void check(Class<?> clazz) throws Exception {
+        boolean clientbound = clazz.isAnnotationPresent(Clientbound.class);
+        boolean serverbound = clazz.isAnnotationPresent(Serverbound.class);
+        if (!clientbound && !serverbound) throw new AssertionError(clazz.getName() + " has no direction");
+
+        List<Field> conditions = getConditionFields(clazz);
+        /*
+         * Every combination of the @OnlyWhen conditions being met or not, with random values in the other fields.
+         */
+        for (int mask = 0; mask < (1 << conditions.size()); mask++) {
+            for (int round = 0; round < RANDOM_ROUNDS; round++) {
+                Packet packet = (Packet) clazz.getDeclaredConstructor().newInstance();
+                fill(packet, conditions, mask);
+
+                for (byte scheme = 0; scheme < Helper.SIGNATURE_SCHEME_COUNT; scheme++) {
+                    byte[] expected = writeReflectively(packet, scheme);
+                    byte[] actual = writeWithCodec(packet, scheme);
+                    if (!Arrays.equals(expected, actual)) {
+                        throw new AssertionError(clazz.getSimpleName() + " is written differently with scheme " +
+                                scheme + ": " + Arrays.toString(expected) + " vs " + Arrays.toString(actual));
+                    }
+                    checks++;
+
+                    if (serverbound) checkRead(clazz, expected, scheme);
+                }
+            }
+        }
+    }
+
+    private void checkRead(Class<?> clazz, byte[] serialized, byte scheme) throws Exception {
+        Packet expected = Packet.deserializeReflectively(streamAfterId(serialized), clazz, scheme);
+        Packet actual = PacketCodec.of(clazz).read(streamAfterId(serialized), scheme);
+        /*
+         * A recycled instance still holds the previous packet's values, reading must overwrite all of them.
+         */
+        Packet reused = (Packet) clazz.getDeclaredConstructor().newInstance();
+        fill(reused, List.of(), 0);
+        PacketCodec.of(clazz).read(streamAfterId(serialized), reused, scheme);
+
+        byte[] expectedBytes = writeReflectively(expected, scheme);
+        if (!Arrays.equals(expectedBytes, writeReflectively(actual, scheme)) ||
+                !Arrays.equals(expectedBytes, writeReflectively(reused, scheme))
+        ) {
+            throw new AssertionError(clazz.getSimpleName() + " is read differently with scheme " + scheme);
+        }
+        checks++;
+    }
+
+    private static DataInputStream streamAfterId(byte[] serialized) {
+        return new DataInputStream(new ByteArrayInputStream(serialized, 1, serialized.length - 1));
+    }
+
+    private static byte[] writeReflectively(Packet packet, byte scheme) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        packet.serializeReflectively(new DataOutputStream(output), scheme);
+
+        return output.toByteArray();
+    }
+
+    private static byte[] writeWithCodec(Packet packet, byte scheme) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PacketCodec.of(packet.getClass()).write(packet, new DataOutputStream(output), scheme);
+
+        return output.toByteArray();
+    }
+
+    private static List<Field> getConditionFields(Class<?> clazz) throws NoSuchFieldException {
+        List<Field> conditions = new ArrayList<>();
+        for (Field field : clazz.getFields()) {
+            OnlyWhen onlyWhen = field.getAnnotation(OnlyWhen.class);
+            if (onlyWhen == null) continue;
+
+            Field condition = clazz.getField(onlyWhen.field());
+            if (!conditions.contains(condition)) conditions.add(condition);
+        }
+
+        return conditions;
+    }
+
+    /*
+     * The i-th condition field is set to the value its @OnlyWhen fields expect if the i-th bit of the mask is set
+     * (or, for an atLeast condition, to a value slightly above the minimum).
+     */
+    private void fill(Packet packet, List<Field> conditions, int mask) throws Exception {
+        Class<?> clazz = packet.getClass();
+        for (Field field : clazz.getFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers)) continue; // final ones are constants
+
+            field.set(packet, randomValue(field.getType()));
+        }
+        for (int i = 0; i < conditions.size(); i++) {
+            Field condition = conditions.get(i);
+            OnlyWhen onlyWhen = getCondition(clazz, condition);
+            String value;
+            if (onlyWhen.is().isEmpty()) {
+                long minimum = onlyWhen.atLeast();
+                value = String.valueOf((mask & (1 << i)) != 0 ? minimum + random.nextInt(3) : minimum - 1L);
+            } else {
+                String expected = onlyWhen.is();
+                value = ((mask & (1 << i)) != 0 ? expected : otherThan(condition.getType(), expected));
+            }
+            condition.set(packet, parse(condition.getType(), value));
+        }
+    }
+
+    private static OnlyWhen getCondition(Class<?> clazz, Field condition) {
+        for (Field field : clazz.getFields()) {
+            OnlyWhen onlyWhen = field.getAnnotation(OnlyWhen.class);
+            if (onlyWhen != null && onlyWhen.field().equals(condition.getName())) return onlyWhen;
+        }
+
+        throw new AssertionError("No @OnlyWhen refers to " + condition.getName());
+    }
+
+    private static String otherThan(Class<?> type, String value) {
+        if (type == boolean.class) return String.valueOf(!Boolean.parseBoolean(value));
+
+        return String.valueOf(Long.parseLong(value) + 1L);
+    }
+
+    private static Object parse(Class<?> type, String value) {
+        if (type == boolean.class) return Boolean.parseBoolean(value);
+        if (type == byte.class) return Byte.parseByte(value);
+        if (type == int.class) return Integer.parseInt(value);
+        if (type == long.class) return Long.parseLong(value);
+
+        throw new AssertionError("Unsupported condition type: " + type);
+    }
+
+    private Object randomValue(Class<?> type) {
+        if (type == byte.class) return (byte) random.nextInt();
+        if (type == boolean.class) return random.nextBoolean();
+        if (type == int.class) return random.nextInt();
+        if (type == long.class) return random.nextLong();
+        if (type == UUID.class) return (random.nextInt(4) == 0 ? null : new UUID(random.nextLong(), random.nextLong()));
+        if (type == String.class) {
+            if (random.nextInt(4) == 0) return null;
+
+            StringBuilder builder = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int i = 0; i < length; i++) builder.append((char) ('a' + random.nextInt(26)));
+            if (random.nextBoolean()) builder.append('\u0436'); // a multibyte character
+
+            return builder.toString();
+        }
+        if (type == byte[].class) {
+            byte[] contents = new byte[random.nextInt(16)];
+            random.nextBytes(contents);
+
+            return contents;
+        }
+        if (type == BufferedImage.class) {
+            BufferedImage image = new BufferedImage(1 + random.nextInt(4), 1 + random.nextInt(4),
+                    BufferedImage.TYPE_INT_ARGB);
+            for (int x = 0; x < image.getWidth(); x++) {
+                for (int y = 0; y < image.getHeight(); y++) image.setRGB(x, y, random.nextInt());
+            }
+
+            return image;
+        }
+
+        throw new AssertionError("Unsupported field type: " + type);
+    }
+}
@@ -0,0 +1,145 @@
+package ru.deewend.cheshka.server;
+
+import ru.deewend.cheshka.server.packet.DiceRolled;
+import ru.deewend.cheshka.server.packet.MakeMove;
+import ru.deewend.cheshka.server.packet.Resign;
+import ru.deewend.cheshka.server.packet.RollDice;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/*
+ * Checks that decoding in-game packets allocates nothing once the pool is warmed up, and that a recycled
+ * MakeMove can't affect anything which has been produced from it. Throws an AssertionError on failure.
+ */
+public class PacketPoolTest {
+    private static final int WARMUP_ITERATIONS = 200_000;
+    private static final int MEASURED_ITERATIONS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        checkPooling();
+        checkBoardNeverReturnsTheReceivedMove();
+        for (byte scheme = 0; scheme < Helper.SIGNATURE_SCHEME_COUNT; scheme++) checkDecodingAllocatesNothing(scheme);
+
+        System.out.println("PacketPoolTest: passed");
+    }
+
+    private static void checkPooling() {
+        PacketPool pool = new PacketPool();
+        check(pool.acquire(RollDice.class) == pool.acquire(RollDice.class), "RollDice is not shared");
+        check(pool.acquire(Resign.class) == pool.acquire(Resign.class), "Resign is not shared");
+        check(pool.acquire(DiceRolled.class) == null, "A packet which is not pooled has been acquired");
+
+        MakeMove first = (MakeMove) pool.acquire(MakeMove.class);
+        MakeMove second = (MakeMove) pool.acquire(MakeMove.class);
+        check(first != second, "The same MakeMove has been acquired twice without being released");
+        pool.release(first);
+        check(pool.acquire(MakeMove.class) == first, "A released MakeMove hasn't been reused");
+
+        /*
+         * The pool never holds more than a full room queue.
+         */
+        MakeMove[] moves = new MakeMove[ClientHandler.MAX_PACKET_COUNT_IN_QUEUE + 1];
+        for (int i = 0; i < moves.length; i++) moves[i] = new MakeMove();
+        for (MakeMove move : moves) pool.release(move);
+        for (int i = 0; i < ClientHandler.MAX_PACKET_COUNT_IN_QUEUE; i++) pool.acquire(MakeMove.class);
+        MakeMove extra = (MakeMove) pool.acquire(MakeMove.class);
+        for (MakeMove move : moves) check(extra != move, "The pool has kept more instances than expected");
+    }
+
+    /*
+     * The MakeMove returned by Board is broadcast asynchronously, after the received one has been recycled,
+     * so it must be a different instance which isn't changed by reusing the received one.
+     */
+    private static void checkBoardNeverReturnsTheReceivedMove() {
+        PacketPool pool = new PacketPool();
+        boolean[] whitesTurn = {true};
+        /*
+         * No turn timeout, so checkTimeout() makes an automatic move right away when the guessed one is impossible.
+         */
+        Board board = new Board(() -> whitesTurn[0] = !whitesTurn[0], new Random(42L), 8, 0L);
+        int produced = 0;
+        for (int i = 0; i < 1000 && board.getGameState() == Board.GAME_STATE_RUNNING; i++) {
+            DiceRolled diceRolled = board.rollDice();
+            check(diceRolled != null, "Couldn't roll the dice");
+
+            MakeMove received = (MakeMove) pool.acquire(MakeMove.class);
+            received.moveNumber = board.getMoveNumber();
+            received.subMoveNumber = board.getSubMoveNumber();
+            received.moveType = (diceRolled.value == 6 ? MakeMove.MOVE_TYPE_SPAWNING : MakeMove.MOVE_TYPE_NO_MOVE);
+            MakeMove result = board.makeMove(received, whitesTurn[0]);
+            if (result == null) { // the move is impossible, e.g. the spawn position is occupied
+                pool.release(received);
+                check(board.checkTimeout() instanceof MakeMove, "Couldn't make an automatic move");
+
+                continue;
+            }
+            check(result != received, "Board has returned the received MakeMove");
+
+            int moveNumber = result.moveNumber;
+            int subMoveNumber = result.subMoveNumber;
+            byte moveType = result.moveType;
+            pool.release(received);
+            MakeMove reused = (MakeMove) pool.acquire(MakeMove.class);
+            check(reused == received, "The received MakeMove hasn't been recycled");
+            reused.moveNumber = -1;
+            reused.subMoveNumber = -1;
+            reused.moveType = -1;
+            check(result.moveNumber == moveNumber && result.subMoveNumber == subMoveNumber &&
+                    result.moveType == moveType, "Reusing the received MakeMove has changed the broadcast one");
+            pool.release(reused);
+            produced++;
+        }
+        check(produced > 0, "No move has been made");
+    }
+
+    private static void checkDecodingAllocatesNothing(byte scheme) throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean threadBean) ||
+                !threadBean.isThreadAllocatedMemorySupported()
+        ) {
+            System.out.println("PacketPoolTest: allocation measurement is not supported, skipping");
+
+            return;
+        }
+        MakeMove makeMove = new MakeMove();
+        makeMove.moveNumber = 7;
+        makeMove.subMoveNumber = 2;
+        makeMove.moveType = MakeMove.MOVE_TYPE_GENERAL;
+        byte[][] frames = {frame(makeMove, scheme), frame(new RollDice(), scheme), frame(new Resign(), scheme)};
+
+        PacketDecoder decoder = new PacketDecoder();
+        PacketPool pool = new PacketPool();
+        decode(decoder, pool, frames, scheme, WARMUP_ITERATIONS);
+        long threadId = Thread.currentThread().threadId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        decode(decoder, pool, frames, scheme, MEASURED_ITERATIONS);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        double perPacket = (double) allocated / MEASURED_ITERATIONS;
+        System.out.printf("PacketPoolTest: %.3f bytes allocated per decoded packet with scheme %d%n",
+                perPacket, scheme);
+        check(perPacket < 1.0D, "Decoding allocates " + perPacket + " bytes per packet");
+    }
+
+    private static void decode(
+            PacketDecoder decoder, PacketPool pool, byte[][] frames, byte scheme, int iterations
+    ) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            byte[] frame = frames[i % frames.length];
+            Packet packet = decoder.decodeFrame(frame, 0, frame.length, pool, scheme);
+            pool.release(packet);
+        }
+    }
+
+    /*
+     * The frame without its length prefix, as passed to PacketDecoder.
+     */
+    private static byte[] frame(Packet packet, byte scheme) throws Exception {
+        return packet.serialize(scheme);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}